@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link GlobalsContract#METHOD_APPLY_BATCH} rolls back a failed sub-batch
+ * and keeps the writes of the sub-batches before and after it, also when the sub-batches
+ * before it were committed at yield points.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ApplyBatchTest {
+
+    private static final Uri YIELDING_URI =
+            Uri.parse("content://" + YieldingGlobalsProvider.AUTHORITY);
+
+    private ContentResolver mResolver;
+    private String mPrefix;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mPrefix = "batch-" + System.nanoTime() + "-";
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(GlobalsContract.CONTENT_URI, GlobalsContract.KEY + " LIKE ?",
+                new String[]{mPrefix + "%"});
+
+        // The operations of a batch run on the provider it is sent to, whatever their URI.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newDelete(GlobalsContract.CONTENT_URI)
+                .withSelection(GlobalsContract.KEY + " LIKE ?", new String[]{mPrefix + "%"})
+                .build());
+        applyBatch(YIELDING_URI, operations);
+    }
+
+    @Test
+    public void failedSubBatchIsRolledBack() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(insert("first", false));
+        // The second sub-batch inserts a key, then fails on an update of a missing record.
+        operations.add(insert("second", true));
+        operations.add(updateMissing());
+        operations.add(insert("third", true));
+
+        Bundle result = applyBatch(GlobalsContract.CONTENT_URI, operations);
+        assertNotNull(result);
+        assertArrayEquals(new int[]{1},
+                result.getIntArray(GlobalsContract.EXTRA_FAILED_BATCHES));
+
+        Map<String, Global> globals = GlobalsLoader.loadMany(mResolver,
+                Arrays.asList(mPrefix + "first", mPrefix + "second", mPrefix + "third"));
+        assertNotNull(globals);
+        assertTrue(globals.containsKey(mPrefix + "first"));
+        assertFalse(globals.containsKey(mPrefix + "second"));
+        assertTrue(globals.containsKey(mPrefix + "third"));
+    }
+
+    @Test
+    public void failureAfterYieldKeepsCommittedSubBatches() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        // The provider commits at each yield point, so the first two sub-batches are committed
+        // before the third fails. A replay of them would fail on their existing keys.
+        operations.add(insert("first", false));
+        operations.add(insert("second", true));
+        operations.add(insert("third", true));
+        operations.add(updateMissing());
+        operations.add(insert("fourth", true));
+
+        Bundle result = applyBatch(YIELDING_URI, operations);
+        assertNotNull(result);
+        assertArrayEquals(new int[]{2},
+                result.getIntArray(GlobalsContract.EXTRA_FAILED_BATCHES));
+
+        assertTrue(exists(YIELDING_URI, "first"));
+        assertTrue(exists(YIELDING_URI, "second"));
+        assertFalse(exists(YIELDING_URI, "third"));
+        assertTrue(exists(YIELDING_URI, "fourth"));
+    }
+
+    private Bundle applyBatch(Uri uri, ArrayList<ContentProviderOperation> operations) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(GlobalsContract.EXTRA_OPERATIONS, operations);
+        return mResolver.call(uri, GlobalsContract.METHOD_APPLY_BATCH, null, extras);
+    }
+
+    private boolean exists(Uri uri, String name) {
+        Bundle result = mResolver.call(uri, GlobalsContract.METHOD_GET, mPrefix + name, null);
+        assertNotNull(result);
+        return result.containsKey(GlobalsContract.EXTRA_GLOBAL);
+    }
+
+    private ContentProviderOperation updateMissing() {
+        return ContentProviderOperation
+                .newUpdate(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, Long.MAX_VALUE))
+                .withValues(new Global(mPrefix + "missing", 0L).toContentValues())
+                .withExpectedCount(1)
+                .build();
+    }
+
+    private ContentProviderOperation insert(String name, boolean yieldAllowed) {
+        return ContentProviderOperation.newInsert(GlobalsContract.CONTENT_URI)
+                .withValues(new Global(mPrefix + name, name).toContentValues())
+                .withYieldAllowed(yieldAllowed)
+                .build();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Writes globals from many threads at once through {@link GlobalsProvider} and checks that
+ * no write lands with the key, the type or the value of another caller.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConcurrentWriteTest {
+
+    private static final int WRITERS = 32;
+    private static final int KEYS_PER_WRITER = 16;
+    private static final int ROUNDS = 20;
+
+    private ContentResolver mResolver;
+    private String mPrefix;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mPrefix = "stress-" + System.nanoTime() + "-";
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(GlobalsContract.CONTENT_URI, GlobalsContract.KEY + " LIKE ?",
+                new String[]{mPrefix + "%"});
+    }
+
+    @Test
+    public void writesNeverCrossBetweenCallers() throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(WRITERS);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < WRITERS; i++) {
+            final int writer = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    write(writer);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            // Rethrows the failure of a writer.
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        List<String> keys = new ArrayList<String>();
+        for (int writer = 0; writer < WRITERS; writer++) {
+            for (int slot = 0; slot < KEYS_PER_WRITER; slot++) {
+                keys.add(key(writer, slot));
+            }
+        }
+        Map<String, Global> globals = GlobalsLoader.loadMany(mResolver, keys);
+        assertNotNull(globals);
+        for (int writer = 0; writer < WRITERS; writer++) {
+            for (int slot = 0; slot < KEYS_PER_WRITER; slot++) {
+                Global global = globals.get(key(writer, slot));
+                assertNotNull(key(writer, slot), global);
+                assertEquals(key(writer, slot), value(writer, slot, ROUNDS - 1),
+                        global.getValue());
+            }
+        }
+    }
+
+    /**
+     * Inserts the keys of the writer, then updates them by ID in rounds, alternating
+     * the writers between long and string values so that a crossed type is detected too.
+     */
+    private void write(int writer) {
+        Uri[] uris = new Uri[KEYS_PER_WRITER];
+        for (int slot = 0; slot < KEYS_PER_WRITER; slot++) {
+            Global global = new Global(key(writer, slot), value(writer, slot, 0));
+            uris[slot] = mResolver.insert(GlobalsContract.CONTENT_URI, global.toContentValues());
+            assertNotNull(key(writer, slot), uris[slot]);
+        }
+
+        for (int round = 1; round < ROUNDS; round++) {
+            for (int slot = 0; slot < KEYS_PER_WRITER; slot++) {
+                Global global = new Global(key(writer, slot), value(writer, slot, round));
+                assertEquals(key(writer, slot), 1,
+                        mResolver.update(uris[slot], global.toContentValues(), null, null));
+            }
+        }
+    }
+
+    private String key(int writer, int slot) {
+        return mPrefix + writer + "-" + slot;
+    }
+
+    private static Object value(int writer, int slot, int round) {
+        long value = ((long) writer << 32) | ((long) slot << 16) | round;
+        return writer % 2 == 0 ? (Object) value : "v" + value;
+    }
+}
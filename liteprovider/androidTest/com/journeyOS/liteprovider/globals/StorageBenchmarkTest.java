@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The storage benchmark of {@link SqliteGlobalsStorage}.
+ * <p>
+ * The workloads run on the key-level operations of {@link GlobalsStorage}: inserts, point
+ * reads, updates by ID, scans and deletes. The time of each workload is logged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StorageBenchmarkTest {
+
+    private static final String TAG = "StorageBenchmark";
+
+    private static final String DATABASE_NAME = "globals_benchmark.db";
+
+    private static final int RECORDS = 2000;
+    private static final int SCANS = 20;
+    private static final String PACKAGE_NAME = "com.journeyOS.liteprovider.benchmark";
+
+    private GlobalsProvider.DatabaseHelper mHelper;
+    private GlobalsStorage mStorage;
+    private long[] mIds;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        mHelper = new GlobalsProvider.DatabaseHelper(context, DATABASE_NAME, false);
+        mStorage = new SqliteGlobalsStorage(mHelper);
+        mIds = new long[RECORDS];
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        InstrumentationRegistry.getTargetContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void runWorkloads() {
+        long start = System.nanoTime();
+        mStorage.beginTransaction(null);
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                mIds[i] = mStorage.insert(values(i, 0), PACKAGE_NAME);
+                assertNotEquals(GlobalsStorage.INVALID_ID, mIds[i]);
+            }
+            mStorage.setTransactionSuccessful();
+        } finally {
+            mStorage.endTransaction();
+        }
+        report("insert", start, RECORDS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++) {
+            assertNotNull(mStorage.get(key(i)));
+        }
+        report("get", start, RECORDS);
+
+        start = System.nanoTime();
+        mStorage.beginTransaction(null);
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                assertTrue(mStorage.update(mIds[i], values(i, 1)));
+            }
+            mStorage.setTransactionSuccessful();
+        } finally {
+            mStorage.endTransaction();
+        }
+        report("update", start, RECORDS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < SCANS; i++) {
+            Cursor cursor = mStorage.scan(true);
+            assertNotNull(cursor);
+            try {
+                assertEquals(RECORDS, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        }
+        report("scan", start, SCANS);
+
+        start = System.nanoTime();
+        mStorage.beginTransaction(null);
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                assertTrue(mStorage.delete(key(i), PACKAGE_NAME));
+            }
+            mStorage.setTransactionSuccessful();
+        } finally {
+            mStorage.endTransaction();
+        }
+        report("delete", start, RECORDS);
+    }
+
+    private void report(String workload, long start, int count) {
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, workload + ": " + count + " ops in "
+                + elapsed / 1000000 + " ms, " + elapsed / count + " ns/op");
+    }
+
+    private static String key(int index) {
+        return "benchmark-" + index;
+    }
+
+    private static ContentValues values(int index, int round) {
+        Object value = index % 2 == 0
+                ? (Object) (long) (index + round) : "value-" + index + "-" + round;
+        return new Global(key(index), value).toContentValues();
+    }
+}
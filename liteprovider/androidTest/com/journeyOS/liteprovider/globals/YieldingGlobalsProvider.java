@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.journeyOS.liteprovider.globals;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteTransactionListener;
+
+/**
+ * A {@link GlobalsProvider} on its own database which yields the transaction at every yield
+ * point, as if another thread always waited to write. It lets the tests cover the commits
+ * made at yield points without racing a second writer.
+ */
+public class YieldingGlobalsProvider extends GlobalsProvider {
+
+    /**
+     * The authority of the provider declared in the test manifest.
+     */
+    public static final String AUTHORITY = GlobalsContract.AUTHORITY + ".yielding";
+
+    private static final String DATABASE_NAME = "globals_yielding.db";
+
+    @Override
+    /* package */ GlobalsStorage onCreateStorage(Context context) {
+        return new YieldingStorage(new DatabaseHelper(context, DATABASE_NAME, false));
+    }
+
+    private static class YieldingStorage extends SqliteGlobalsStorage {
+
+        /**
+         * The listener of the outermost transaction, to begin the transaction again with it.
+         */
+        private SQLiteTransactionListener mListener;
+
+        public YieldingStorage(DatabaseHelper helper) {
+            super(helper);
+        }
+
+        @Override
+        public void beginTransaction(SQLiteTransactionListener listener) {
+            mListener = listener;
+            super.beginTransaction(listener);
+        }
+
+        @Override
+        public boolean yieldIfContendedSafely(long sleepAfterYieldDelay) {
+            // Commits and begins again, as SQLiteDatabase does when another thread waits.
+            setTransactionSuccessful();
+            endTransaction();
+            super.beginTransaction(mListener);
+            return true;
+        }
+    }
+}
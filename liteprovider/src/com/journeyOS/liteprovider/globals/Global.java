@@ -38,6 +38,11 @@ import java.io.ObjectOutputStream;
      */
     public static final long NO_ID = -1;
 
+    /**
+     * Indicates this global never expires.
+     */
+    public static final long NO_EXPIRY = 0;
+
     /**
      * The integer representation of <code>true</code> to store boolean type values
      * into a database.
@@ -70,6 +75,46 @@ import java.io.ObjectOutputStream;
      */
     private Object mValue;
 
+    /**
+     * The expiry time of this global, or {@link #NO_EXPIRY}.
+     */
+    private long mExpiresAt = NO_EXPIRY;
+
+    /**
+     * Indicates whether the value has been loaded. A global created by
+     * {@link #lazy(long, String, String, long, long)} holds only its metadata.
+     */
+    private boolean mValueLoaded = true;
+
+    /**
+     * The size of the value in bytes if the value has not been loaded.
+     */
+    private long mValueSize;
+
+    /**
+     * Returns a {@link Global} holding the metadata of a record without its value.
+     *
+     * @param id        The ID of the record.
+     * @param key       The key of the record.
+     * @param type      The value type of the record.
+     * @param expiresAt The expiry time, or {@link #NO_EXPIRY}.
+     * @param valueSize The size of the value in bytes.
+     * @return the {@link Global} whose value should be loaded on demand.
+     */
+    public static Global lazy(long id, String key, String type, long expiresAt, long valueSize) {
+        Global global = new Global();
+        global.mId = id;
+        global.mKey = key;
+        global.mType = type;
+        global.mExpiresAt = expiresAt;
+        global.mValueLoaded = false;
+        global.mValueSize = valueSize;
+        return global;
+    }
+
+    private Global() {
+    }
+
     /**
      * Returns the {@link Global} created from the current row of the {@link Cursor}.
      * Note that null fields are not read out.
@@ -78,6 +123,17 @@ import java.io.ObjectOutputStream;
      * @return the {@link Global} created from the current row of the {@link Cursor}.
      */
     public static Global cursorRowToGlobal(Cursor cursor) {
+        return new Global(cursorRowToValues(cursor));
+    }
+
+    /**
+     * Returns the {@link ContentValues} read from the current row of the {@link Cursor}.
+     * Note that null fields are not read out.
+     *
+     * @param cursor The {@link Cursor} indicating the row to read.
+     * @return the {@link ContentValues} of the current row of the {@link Cursor}.
+     */
+    public static ContentValues cursorRowToValues(Cursor cursor) {
         ContentValues values = new ContentValues();
         String[] columns = cursor.getColumnNames();
         int length = columns.length;
@@ -89,7 +145,8 @@ import java.io.ObjectOutputStream;
                         values.put(columns[i], cursor.getFloat(i));
                         break;
                     case Cursor.FIELD_TYPE_INTEGER:
-                        values.put(columns[i], cursor.getInt(i));
+                        // IDs and expiry times do not fit in an int.
+                        values.put(columns[i], cursor.getLong(i));
                         break;
                     case Cursor.FIELD_TYPE_STRING:
                         values.put(columns[i], cursor.getString(i));
@@ -104,7 +161,7 @@ import java.io.ObjectOutputStream;
             }
         }
 
-        return new Global(values);
+        return values;
     }
 
     /**
@@ -116,6 +173,10 @@ import java.io.ObjectOutputStream;
         mId = values.getAsLong(GlobalsContract._ID);
         mKey = values.getAsString(GlobalsContract.KEY);
         mType = values.getAsString(GlobalsContract.TYPE);
+        Long expiresAt = values.getAsLong(GlobalsContract.EXPIRES_AT);
+        if (expiresAt != null) {
+            mExpiresAt = expiresAt;
+        }
         if (mType.equals(Boolean.class.getName())) {
             mValue = getValueAsBoolean(values);
         } else if (mType.equals(Float.class.getName())) {
@@ -191,10 +252,22 @@ import java.io.ObjectOutputStream;
      * @param value The value of this global.
      */
     public Global(String key, Object value) {
+        this(key, value, NO_EXPIRY);
+    }
+
+    /**
+     * Creates a new global for the key-value pair which expires at the time.
+     *
+     * @param key       The key of this global.
+     * @param value     The value of this global.
+     * @param expiresAt The expiry time in milliseconds since the epoch, or {@link #NO_EXPIRY}.
+     */
+    public Global(String key, Object value, long expiresAt) {
         mKey = key;
         Class<?> clazz = value.getClass();
         mType = clazz.getName();
         mValue = value;
+        mExpiresAt = expiresAt;
     }
 
     /* package */ long getId() {
@@ -209,6 +282,31 @@ import java.io.ObjectOutputStream;
         return mValue;
     }
 
+    public long getExpiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * Returns whether the value has been loaded. {@link #getValue()} returns null otherwise.
+     */
+    public boolean isValueLoaded() {
+        return mValueLoaded;
+    }
+
+    public long getValueSize() {
+        return mValueSize;
+    }
+
+    /**
+     * Returns whether this global has expired at the time.
+     *
+     * @param now The current time in milliseconds since the epoch.
+     * @return true if this global has expired.
+     */
+    public boolean isExpired(long now) {
+        return mExpiresAt != NO_EXPIRY && mExpiresAt <= now;
+    }
+
     /**
      * Returns a {@link ContentValues} for this global.
      *
@@ -218,6 +316,12 @@ import java.io.ObjectOutputStream;
         ContentValues values = new ContentValues();
         values.put(GlobalsContract.KEY, mKey);
         values.put(GlobalsContract.TYPE, mType);
+        // A global without an expiry clears the expiry of the record it replaces.
+        if (mExpiresAt != NO_EXPIRY) {
+            values.put(GlobalsContract.EXPIRES_AT, mExpiresAt);
+        } else {
+            values.putNull(GlobalsContract.EXPIRES_AT);
+        }
         if (mType.equals(Boolean.class.getName())) {
             putBoolean(values, (Boolean) mValue);
         } else if (mType.equals(Float.class.getName())) {
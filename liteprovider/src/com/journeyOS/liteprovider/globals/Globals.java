@@ -25,14 +25,22 @@ import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
 import com.journeyOS.liteprovider.globals.GlobalsCache.CacheListener;
 import com.journeyOS.liteprovider.globals.task.AbstractTask;
 import com.journeyOS.liteprovider.globals.task.SerialExecutor;
+import com.journeyOS.liteprovider.globals.task.TaskPool;
+import com.journeyOS.liteprovider.utils.LogUtils;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,9 +59,17 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public class Globals implements SharedPreferences {
 
+    private static final String TAG = Globals.class.getSimpleName();
+
     private static final String TASK_NAME = "Globals";
 
-    private static volatile SharedPreferences sHelper;
+    /**
+     * The number of edits from which an applied commit runs in the
+     * {@link SerialExecutor.Priority#BULK} lane.
+     */
+    private static final int BULK_EDITS_THRESHOLD = 100;
+
+    private static volatile Globals sHelper;
 
     /**
      * The executor for editing actual values on the database.
@@ -62,6 +78,18 @@ public class Globals implements SharedPreferences {
      */
     private static volatile SerialExecutor sExecutor = new SerialExecutor(TASK_NAME);
 
+    /**
+     * The maximum number of executed commits kept for reuse.
+     */
+    private static final int COMMIT_POOL_SIZE = 16;
+
+    /**
+     * The executed commits to be reused by the editors.
+     *
+     * @see Commit#obtain(Context)
+     */
+    private static final TaskPool<Commit> sCommitPool = new TaskPool<Commit>(COMMIT_POOL_SIZE);
+
     private Context mContext;
 
     /**
@@ -80,10 +108,22 @@ public class Globals implements SharedPreferences {
      * @param context The application context.
      * @return an implementation of {@link SharedPreferences}.
      */
-    protected static SharedPreferences getInstance(Context context) {
+    protected static Globals getInstance(Context context) {
+        return getInstance(context, Collections.<String>emptySet());
+    }
+
+    /**
+     * Returns an implementation of {@link SharedPreferences} using {@link ContentProvider}.
+     * The hot keys are loaded before the other globals when the instance is created.
+     *
+     * @param context The application context.
+     * @param hotKeys The keys read at startup.
+     * @return an implementation of {@link SharedPreferences}.
+     */
+    protected static Globals getInstance(Context context, Collection<String> hotKeys) {
         if (sHelper == null) {
             synchronized (Globals.class) {
-                sHelper = new Globals(context);
+                sHelper = new Globals(context, hotKeys);
             }
         }
         return sHelper;
@@ -93,10 +133,11 @@ public class Globals implements SharedPreferences {
      * Create a new instance of {@link SharedPreferences}.
      *
      * @param context The application context.
+     * @param hotKeys The keys read at startup.
      */
-    private Globals(Context context) {
+    private Globals(Context context, Collection<String> hotKeys) {
         mContext = context;
-        mCache = new GlobalsCache(mContext);
+        mCache = new GlobalsCache(mContext, hotKeys);
         mChangeListeners = new GlobalsChangeListeners(mContext, this);
         mCache.addCacheListener(mChangeListeners);
     }
@@ -223,6 +264,181 @@ public class Globals implements SharedPreferences {
         }
     }
 
+    /**
+     * Retrieves the values for the keys at once.
+     * Cached keys are answered locally and the others are fetched with a single query.
+     *
+     * @param keys The names of the globals to retrieve.
+     * @return the values mapped by key. Keys without values are not contained.
+     */
+    public Map<String, ?> getMany(Collection<String> keys) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (Global global : mCache.getMany(keys).values()) {
+            map.put(global.getKey(), global.getValue());
+        }
+        return map;
+    }
+
+    /**
+     * Adds the delta to an integer value atomically on the provider.
+     * A missing value is treated as zero.
+     *
+     * @param key   The name of the global to modify.
+     * @param delta The delta to add.
+     * @return the new value.
+     * @throws IllegalArgumentException if the new value overflows. The value is kept.
+     */
+    public int increment(String key, int delta) {
+        Bundle extras = new Bundle();
+        extras.putInt(GlobalsContract.EXTRA_DELTA, delta);
+        return (Integer) callAtomic(GlobalsContract.METHOD_INCREMENT, key, extras);
+    }
+
+    /**
+     * Adds the delta to a long value atomically on the provider.
+     * A missing value is treated as zero.
+     *
+     * @param key   The name of the global to modify.
+     * @param delta The delta to add.
+     * @return the new value.
+     * @throws IllegalArgumentException if the new value overflows. The value is kept.
+     */
+    public long increment(String key, long delta) {
+        Bundle extras = new Bundle();
+        extras.putLong(GlobalsContract.EXTRA_DELTA, delta);
+        return (Long) callAtomic(GlobalsContract.METHOD_INCREMENT, key, extras);
+    }
+
+    /**
+     * Subtracts the delta from an integer value atomically on the provider.
+     *
+     * @see #increment(String, int)
+     */
+    public int decrement(String key, int delta) {
+        if (delta == Integer.MIN_VALUE) {
+            throw new IllegalArgumentException("integer overflow");
+        }
+        return increment(key, -delta);
+    }
+
+    /**
+     * Subtracts the delta from a long value atomically on the provider.
+     *
+     * @see #increment(String, long)
+     */
+    public long decrement(String key, long delta) {
+        if (delta == Long.MIN_VALUE) {
+            throw new IllegalArgumentException("long overflow");
+        }
+        return increment(key, -delta);
+    }
+
+    /**
+     * Sets the value only if the current value equals the expected value.
+     * The comparison and the write are executed atomically on the provider.
+     *
+     * @param key    The name of the global to modify.
+     * @param expect The expected value, or null to expect that no mapping exists.
+     * @param update The new value.
+     * @return true if the value was set.
+     */
+    public boolean compareAndSet(String key, Object expect, Object update) {
+        if (!(update instanceof Serializable)) {
+            throw new IllegalArgumentException("update should be serializable");
+        }
+        if (expect != null && !(expect instanceof Serializable)) {
+            throw new IllegalArgumentException("expect should be serializable");
+        }
+
+        Bundle extras = new Bundle();
+        extras.putSerializable(GlobalsContract.EXTRA_VALUE, (Serializable) update);
+        if (expect != null) {
+            extras.putSerializable(GlobalsContract.EXTRA_EXPECT, (Serializable) expect);
+        }
+        Bundle result = call(GlobalsContract.METHOD_COMPARE_AND_SET, key, extras);
+        return result.getBoolean(GlobalsContract.EXTRA_CHANGED);
+    }
+
+    /**
+     * Adds the member to a string set atomically on the provider.
+     *
+     * @param key    The name of the global to modify.
+     * @param member The member to add.
+     * @return true if the set did not already contain the member.
+     */
+    public boolean addToStringSet(String key, String member) {
+        Bundle extras = new Bundle();
+        extras.putString(GlobalsContract.EXTRA_MEMBER, member);
+        Bundle result = call(GlobalsContract.METHOD_ADD_TO_SET, key, extras);
+        return result.getBoolean(GlobalsContract.EXTRA_CHANGED);
+    }
+
+    /**
+     * Removes the member from a string set atomically on the provider.
+     *
+     * @param key    The name of the global to modify.
+     * @param member The member to remove.
+     * @return true if the set contained the member.
+     */
+    public boolean removeFromStringSet(String key, String member) {
+        Bundle extras = new Bundle();
+        extras.putString(GlobalsContract.EXTRA_MEMBER, member);
+        Bundle result = call(GlobalsContract.METHOD_REMOVE_FROM_SET, key, extras);
+        return result.getBoolean(GlobalsContract.EXTRA_CHANGED);
+    }
+
+    /**
+     * Sets a value which expires after the time to live.
+     * An expired value is no longer returned and is deleted by the provider in the background.
+     * Putting the key again without this method clears the expiry.
+     *
+     * @param key       The name of the global to modify.
+     * @param value     The new value for the global.
+     * @param ttlMillis The time to live in milliseconds.
+     * @param isCommit  true to write synchronously like {@link Editor#commit()}.
+     * @return true if the value was written, or the write was scheduled.
+     */
+    public boolean putWithTtl(String key, Object value, long ttlMillis, boolean isCommit) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttl should be positive");
+        }
+
+        GlobalsEditor editor = new GlobalsEditor(mContext, this);
+        editor.put(key, value, System.currentTimeMillis() + ttlMillis);
+        if (isCommit) {
+            return editor.commit();
+        }
+        editor.apply();
+        return true;
+    }
+
+    private Object callAtomic(String method, String key, Bundle extras) {
+        Bundle result = call(method, key, extras);
+        return result.getSerializable(GlobalsContract.EXTRA_VALUE);
+    }
+
+    /**
+     * Calls an atomic method of the provider and reflects the resulting value on the cache.
+     *
+     * @param method The atomic method defined in {@link GlobalsContract}.
+     * @param key    The key to operate on.
+     * @param extras The arguments of the method.
+     * @return the result of the method.
+     */
+    private Bundle call(String method, String key, Bundle extras) {
+        ContentResolver resolver = mContext.getContentResolver();
+        Bundle result = resolver.call(GlobalsContract.CONTENT_URI, method, key, extras);
+        if (result == null) {
+            throw new IllegalStateException("globals provider is not available");
+        }
+
+        Object value = result.getSerializable(GlobalsContract.EXTRA_VALUE);
+        if (result.getBoolean(GlobalsContract.EXTRA_CHANGED) && value != null) {
+            mCache.put(key, value);
+        }
+        return result;
+    }
+
     /**
      * This class holds {@link OnSharedPreferenceChangeListener}s and dispatches callbacks for
      * changes of shared preferences.
@@ -298,11 +514,19 @@ public class Globals implements SharedPreferences {
      */
     private void onApply(Commit commit) {
         commit.cache(mCache);
-        sExecutor.execute(commit);
+        SerialExecutor.Priority priority = commit.size() >= BULK_EDITS_THRESHOLD
+                ? SerialExecutor.Priority.BULK : SerialExecutor.Priority.NORMAL;
+        // Nobody waits for an applied commit, so it returns to the pool when it is done.
+        commit.recycleWhenDone();
+        sExecutor.execute(commit, priority, commit.getKeys());
     }
 
     /**
      * Called when changes need to be applied to the database synchronously.
+     * <p>
+     * The commit runs in the urgent lane, but not before the task running on the executor
+     * has completed. So a commit on the main thread may wait for the rest of a running
+     * applied commit, including a large one in the bulk lane.
      *
      * @param commit The commit to apply.
      * @return true if the new values were successfully written to the database.
@@ -311,11 +535,24 @@ public class Globals implements SharedPreferences {
     private boolean onCommit(Commit commit) {
         try {
             commit.cache(mCache);
-            commit.execute();
+            if (sExecutor.isExecutorThread()) {
+                commit.execute();
+                return true;
+            }
+
+            // The commit runs after the applied commits for its keys, but ahead of
+            // the other queued commits.
+            sExecutor.execute(commit, SerialExecutor.Priority.URGENT, commit.getKeys());
+            commit.awaitCompletion();
+            return commit.getFailure() == null;
         } catch (InterruptedException e) {
             return false;
+        } catch (RuntimeException e) {
+            LogUtils.w(TAG, "commit failed: " + e);
+            return false;
+        } finally {
+            commit.recycle();
         }
-        return true;
     }
 
     /**
@@ -332,17 +569,27 @@ public class Globals implements SharedPreferences {
         public GlobalsEditor(Context context, Globals globals) {
             mContext = context;
             mGlobals = globals;
-            mCommit = new Commit(context);
+            mCommit = Commit.obtain(context);
         }
 
         @Override
         public void apply() {
-            mGlobals.onApply(mCommit);
+            mGlobals.onApply(takeCommit());
         }
 
         @Override
         public boolean commit() {
-            return mGlobals.onCommit(mCommit);
+            return mGlobals.onCommit(takeCommit());
+        }
+
+        /**
+         * Returns the edits so far and starts a new commit for the next edits, so that
+         * a commit still queued is not executed again.
+         */
+        private Commit takeCommit() {
+            Commit commit = mCommit;
+            mCommit = Commit.obtain(mContext);
+            return commit;
         }
 
         @Override
@@ -352,7 +599,11 @@ public class Globals implements SharedPreferences {
         }
 
         private Editor put(String key, Object value) {
-            Global global = new Global(key, value);
+            return put(key, value, Global.NO_EXPIRY);
+        }
+
+        private Editor put(String key, Object value, long expiresAt) {
+            Global global = new Global(key, value, expiresAt);
             ContentValues values = global.toContentValues();
             mCommit.add(new InsertOrUpdate(mContext, values));
             return this;
@@ -443,6 +694,12 @@ public class Globals implements SharedPreferences {
          */
         private List<Edit> mEditOperations = new ArrayList<Edit>();
 
+        /**
+         * Indicates whether this commit returns to the pool when it is done. Guarded by this
+         * commit.
+         */
+        private boolean mRecycleWhenDone;
+
         /**
          * Creates a new commit.
          *
@@ -452,6 +709,63 @@ public class Globals implements SharedPreferences {
             mContentResolver = context.getContentResolver();
         }
 
+        /**
+         * Returns an executed commit from the pool, emptied for new edits, or a new commit.
+         *
+         * @param context The application context used to get the {@link ContentResolver}.
+         */
+        public static Commit obtain(Context context) {
+            Commit commit = sCommitPool.acquire();
+            if (commit == null) {
+                return new Commit(context);
+            }
+            commit.mContentResolver = context.getContentResolver();
+            commit.mClearOperation = null;
+            commit.mEditOperations.clear();
+            return commit;
+        }
+
+        /**
+         * Returns this commit to the pool. Call this only after it has completed or been
+         * cancelled.
+         */
+        public void recycle() {
+            sCommitPool.release(this);
+        }
+
+        /**
+         * Makes this commit return to the pool by itself when it has completed or been
+         * cancelled. Call this before executing it.
+         */
+        public synchronized void recycleWhenDone() {
+            mRecycleWhenDone = true;
+        }
+
+        @Override
+        protected void onCancel(long taskId) {
+            super.onCancel(taskId);
+            // An interrupted commit is still running here, so it is recycled on completion.
+            if (!isActive()) {
+                recycleIfDone();
+            }
+        }
+
+        @Override
+        protected void onComplete(long taskId) {
+            super.onComplete(taskId);
+            recycleIfDone();
+        }
+
+        private void recycleIfDone() {
+            synchronized (this) {
+                if (!mRecycleWhenDone) {
+                    return;
+                }
+                mRecycleWhenDone = false;
+            }
+            recycle();
+        }
+
         /**
          * Adds an edit operation to this commit.
          *
@@ -472,6 +786,37 @@ public class Globals implements SharedPreferences {
             }
         }
 
+        /**
+         * Returns the number of edits in this commit.
+         */
+        public int size() {
+            return mEditOperations.size() + (mClearOperation != null ? 1 : 0);
+        }
+
+        /**
+         * Returns the keys edited by this commit, or null if this commit clears all globals.
+         */
+        public Set<String> getKeys() {
+            if (mClearOperation != null) {
+                return null;
+            }
+
+            Set<String> keys = new HashSet<String>();
+            for (Edit edit : mEditOperations) {
+                switch (edit.getType()) {
+                    case INSERT_OR_UPDATE:
+                        keys.add(((InsertOrUpdate) edit).getKey());
+                        break;
+                    case REMOVE:
+                        keys.add(((Remove) edit).getKey());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return keys;
+        }
+
         /**
          * The cache operation should be executed on the same execution context as
          * {@link Editor#apply()} or {@link Editor#commit()}.
@@ -535,7 +880,9 @@ public class Globals implements SharedPreferences {
             try {
                 mContentResolver.applyBatch(authority, operations);
             } catch (RemoteException e) {
+                throw new IllegalStateException("failed to apply the commit", e);
             } catch (OperationApplicationException e) {
+                throw new IllegalStateException("failed to apply the commit", e);
             }
         }
     }
@@ -17,13 +17,21 @@
 package com.journeyOS.liteprovider.globals;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.ContentObserver;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.text.TextUtils;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -39,21 +47,58 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * because the globals database will not be frequently updated.
  * However, the cache might not be synchronized if you immediately access
  * records after updating records.
+ * Expired globals are treated as absent even before the provider deletes them.
+ * <p>
+ * Large values are not loaded with the other globals. They are loaded in batches
+ * when they are accessed for the first time.
+ * <p>
+ * Hot keys are loaded with a single query before the other globals, so that reads for them
+ * do not wait for the whole table. They are declared by the application, and learned from
+ * the keys read before the loading completed in the previous run.
  * <p>
  * The cache is constructed through the change notifications of
  * the {@link GlobalsProvider}.
  * That is, this cache depends on the implementation of
  * the {@link GlobalsProvider}.
  *
- * @see GlobalsProvider#notifyChange(Set)
+ * @see GlobalsProvider#notifyChange(long, long)
+ * @see GlobalsContract.Changes
  */
 /* package */ class GlobalsCache {
 
+    /**
+     * The preferences holding the hot keys learned in the previous run.
+     */
+    private static final String HOT_KEYS_PREFERENCES = "globals_hot_keys";
+
+    private static final String PREF_HOT_KEYS = "hot_keys";
+
+    /**
+     * The maximum number of hot keys learned in a run.
+     */
+    private static final int MAX_LEARNED_HOT_KEYS = 64;
+
     private Context mContext;
     private ContentResolver mContentResolver;
 
     private boolean mLoaded = false;
 
+    /**
+     * The last sequence number of the change log applied to the cache.
+     */
+    private long mLastSequence;
+
+    /**
+     * The lock serializing {@link #sync(long)}, so that the changes loaded by a run are never
+     * applied over the newer changes of another run.
+     */
+    private final Object mSyncLock = new Object();
+
+    /**
+     * The mapping of the globals table published by the provider, or null if not mapped yet.
+     */
+    private volatile ByteBuffer mMapping;
+
     /**
      * The memory cache for globals.
      */
@@ -64,6 +109,22 @@ import java.util.concurrent.CopyOnWriteArrayList;
      */
     private Map<String, Object> mTempMap = new ConcurrentHashMap<String, Object>();
 
+    /**
+     * The hot keys declared by the application.
+     */
+    private final Set<String> mHotKeys;
+
+    /**
+     * The keys read before the loading completed, to be loaded first in the next run.
+     */
+    private final Set<String> mLearnedHotKeys = new LinkedHashSet<String>();
+
+    /**
+     * The hot keys which had no record when they were loaded. Reads for them do not wait
+     * for the loading completion.
+     */
+    private Set<String> mAbsentHotKeys = Collections.emptySet();
+
     private GlobalsObserver mObserver;
 
     private List<CacheListener> mCacheListeners = new CopyOnWriteArrayList<CacheListener>();
@@ -75,7 +136,19 @@ import java.util.concurrent.CopyOnWriteArrayList;
      * @param context The application context.
      */
     public GlobalsCache(Context context) {
+        this(context, Collections.<String>emptySet());
+    }
+
+    /**
+     * Create a new memory cache for globals which loads the hot keys first.
+     * Note that the cache becomes available after loading.
+     *
+     * @param context The application context.
+     * @param hotKeys The keys read at startup.
+     */
+    public GlobalsCache(Context context, Collection<String> hotKeys) {
         mContext = context;
+        mHotKeys = new HashSet<String>(hotKeys);
         mContentResolver = mContext.getContentResolver();
         mObserver = new GlobalsObserver(mContext, this);
         mContentResolver.registerContentObserver(GlobalsContract.CONTENT_URI, true, mObserver);
@@ -102,14 +175,131 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
     /**
      * Loads globals from the database into the cache.
+     * The globals are read from the mapping published by the provider if possible, and
+     * through IPC otherwise. Through IPC, the globals are loaded in pages, each of which
+     * is readable by {@link #get(String)} as soon as it lands.
+     * The lock is not held while querying, so that {@link #getMany(Collection)} can answer
+     * before the loading completes.
+     */
+    private void loadFromDatabase() {
+        // Read the sequence first so that changes racing with the loading are synced again.
+        long sequence = GlobalsLoader.loadSequence(mContentResolver);
+        long loadedSequence = sequence;
+        Map<Uri, Global> map;
+        GlobalsMapping.Table table = readMapping();
+        if (table != null) {
+            // The mapping can be older than the sequence if a commit raced with opening it.
+            map = table.getGlobals();
+            loadedSequence = table.getSequence();
+        } else {
+            warmUp();
+            map = loadPages() ? null : GlobalsLoader.loadAllLazily(mContentResolver);
+        }
+        synchronized (this) {
+            if (map != null) {
+                mMap.putAll(map);
+            }
+            mLastSequence = Math.max(loadedSequence, 0);
+            mLoaded = true;
+            mAbsentHotKeys = Collections.emptySet();
+            notifyAll();
+        }
+        saveLearnedHotKeys();
+
+        if (sequence > loadedSequence) {
+            sync(sequence);
+        }
+    }
+
+    /**
+     * Loads the declared and the learned hot keys with a single query, and wakes up
+     * the readers waiting for them. If the query fails, nothing is marked absent and
+     * the readers wait for the loading of all globals.
      */
-    private synchronized void loadFromDatabase() {
-        Map<Uri, Global> map = GlobalsLoader.loadAll(mContentResolver);
-        if (map != null) {
-            mMap.putAll(map);
+    private void warmUp() {
+        Set<String> hotKeys = new HashSet<String>(mHotKeys);
+        SharedPreferences preferences =
+                mContext.getSharedPreferences(HOT_KEYS_PREFERENCES, Context.MODE_PRIVATE);
+        hotKeys.addAll(preferences.getStringSet(PREF_HOT_KEYS, Collections.<String>emptySet()));
+        if (hotKeys.isEmpty()) {
+            return;
+        }
+
+        Map<String, Global> globals;
+        try {
+            globals = GlobalsLoader.loadMany(mContentResolver, hotKeys);
+        } catch (UnsupportedOperationException e) {
+            // The provider does not support the query.
+            return;
+        }
+        if (globals == null) {
+            return;
+        }
+        for (Global global : globals.values()) {
+            mMap.put(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, global.getId()),
+                    global);
+        }
+        hotKeys.removeAll(globals.keySet());
+        synchronized (this) {
+            mAbsentHotKeys = hotKeys;
+            notifyAll();
         }
-        mLoaded = true;
-        notifyAll();
+    }
+
+    /**
+     * Saves the keys read before the loading completed as the hot keys of the next run.
+     * The previous hot keys are kept if no key was read.
+     */
+    private void saveLearnedHotKeys() {
+        Set<String> learned;
+        synchronized (this) {
+            if (mLearnedHotKeys.isEmpty()) {
+                return;
+            }
+            learned = new HashSet<String>(mLearnedHotKeys);
+            mLearnedHotKeys.clear();
+        }
+        mContext.getSharedPreferences(HOT_KEYS_PREFERENCES, Context.MODE_PRIVATE).edit()
+                .putStringSet(PREF_HOT_KEYS, learned)
+                .apply();
+    }
+
+    /**
+     * Loads the globals page by page into the cache, waking up the readers waiting for
+     * the globals of each page.
+     *
+     * @return true if all pages have been loaded.
+     */
+    private boolean loadPages() {
+        return GlobalsLoader.loadAllPaged(mContentResolver, new GlobalsLoader.PageCallback() {
+            @Override
+            public void onPage(Map<Uri, Global> page) {
+                mMap.putAll(page);
+                synchronized (GlobalsCache.this) {
+                    GlobalsCache.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the globals table from the mapping, mapping the file again if the table
+     * has outgrown the mapping.
+     *
+     * @return the table, or null if the mapping is not available or the reads were torn.
+     */
+    private GlobalsMapping.Table readMapping() {
+        ByteBuffer mapping = mMapping;
+        if (mapping != null) {
+            GlobalsMapping.Table table = GlobalsMapping.read(mapping);
+            if (table != null) {
+                return table;
+            }
+        }
+
+        mapping = GlobalsLoader.loadMapping(mContentResolver);
+        mMapping = mapping;
+        return mapping != null ? GlobalsMapping.read(mapping) : null;
     }
 
     public void addCacheListener(CacheListener l) {
@@ -142,6 +332,38 @@ import java.util.concurrent.CopyOnWriteArrayList;
         mContentResolver.unregisterContentObserver(mObserver);
     }
 
+    /**
+     * Returns the cached global for the key. The caller waits only until the global is
+     * loaded, not for the loading completion.
+     *
+     * @param key The key to look up.
+     * @return the cached global, or null if the key is absent.
+     */
+    private Global findLoaded(String key) {
+        if (!mLoaded && mLearnedHotKeys.size() < MAX_LEARNED_HOT_KEYS) {
+            mLearnedHotKeys.add(key);
+        }
+
+        Global global = find(key);
+        while (global == null && !mLoaded && !mAbsentHotKeys.contains(key)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+            global = find(key);
+        }
+        return global;
+    }
+
+    private Global find(String key) {
+        for (Global cache : mMap.values()) {
+            if (cache.getKey().equals(key)) {
+                return cache;
+            }
+        }
+        return null;
+    }
+
     /**
      * Waits for a loading completion.
      */
@@ -154,14 +376,29 @@ import java.util.concurrent.CopyOnWriteArrayList;
         }
     }
 
-    public synchronized Map<String, ?> getAllAsMap() {
+    public Map<String, ?> getAllAsMap() {
         Map<String, Object> map = new HashMap<String, Object>();
-        Set<Entry<Uri, Global>> entries = mMap.entrySet();
-        for (Entry<Uri, Global> entry : entries) {
-            Global cache = entry.getValue();
-            String key = cache.getKey();
-            Object value = cache.getValue();
-            map.put(key, value);
+        List<Global> unloaded = new ArrayList<Global>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Set<Entry<Uri, Global>> entries = mMap.entrySet();
+            for (Entry<Uri, Global> entry : entries) {
+                Global cache = entry.getValue();
+                if (cache.isExpired(now)) {
+                    continue;
+                }
+                if (!cache.isValueLoaded()) {
+                    unloaded.add(cache);
+                    continue;
+                }
+                String key = cache.getKey();
+                Object value = cache.getValue();
+                map.put(key, value);
+            }
+        }
+
+        for (Global global : loadValues(unloaded).values()) {
+            map.put(global.getKey(), global.getValue());
         }
         return map;
     }
@@ -171,17 +408,8 @@ import java.util.concurrent.CopyOnWriteArrayList;
             return true;
         }
 
-        awaitLoading();
-        Set<Entry<Uri, Global>> entries = mMap.entrySet();
-        for (Entry<Uri, Global> entry : entries) {
-            Global cache = entry.getValue();
-            String cacheKey = cache.getKey();
-            if (cacheKey.equals(key)) {
-                return true;
-            }
-        }
-
-        return false;
+        Global global = findLoaded(key);
+        return global != null && !global.isExpired(System.currentTimeMillis());
     }
 
     public synchronized void put(String key, Object value) {
@@ -224,29 +452,114 @@ import java.util.concurrent.CopyOnWriteArrayList;
         }
     }
 
-    public synchronized Global get(String key) {
-        if (mTempMap.containsKey(key)) {
-            Object value = mTempMap.get(key);
-            return new Global(key, value);
+    public Global get(String key) {
+        Global global = null;
+        synchronized (this) {
+            if (mTempMap.containsKey(key)) {
+                Object value = mTempMap.get(key);
+                return new Global(key, value);
+            }
+
+            global = findLoaded(key);
+            if (global == null || global.isExpired(System.currentTimeMillis())) {
+                return null;
+            }
+            if (global.isValueLoaded()) {
+                return global;
+            }
         }
 
-        awaitLoading();
-        Set<Entry<Uri, Global>> entries = mMap.entrySet();
-        Uri uri = null;
-        for (Entry<Uri, Global> entry : entries) {
-            Global cache = entry.getValue();
-            String cacheKey = cache.getKey();
-            if (cacheKey.equals(key)) {
-                uri = entry.getKey();
-                break;
+        return loadValues(Collections.singletonList(global)).get(key);
+    }
+
+    /**
+     * Returns the globals for the keys.
+     * Cached keys are answered locally. If the cache has not been loaded yet,
+     * the other keys are fetched together with a single query instead of waiting for the loading.
+     *
+     * @param keys The keys to look up.
+     * @return the globals mapped by key. Keys without globals are not contained.
+     */
+    public Map<String, Global> getMany(Collection<String> keys) {
+        Set<String> wanted = new HashSet<String>(keys);
+        Map<String, Global> result = new HashMap<String, Global>();
+        List<String> misses = new ArrayList<String>();
+        List<Global> unloaded = new ArrayList<Global>();
+        synchronized (this) {
+            for (String key : wanted) {
+                if (mTempMap.containsKey(key)) {
+                    result.put(key, new Global(key, mTempMap.get(key)));
+                }
+            }
+
+            if (mLoaded) {
+                long now = System.currentTimeMillis();
+                for (Global cache : mMap.values()) {
+                    String cacheKey = cache.getKey();
+                    if (!result.containsKey(cacheKey) && wanted.contains(cacheKey)
+                            && !cache.isExpired(now)) {
+                        if (cache.isValueLoaded()) {
+                            result.put(cacheKey, cache);
+                        } else {
+                            unloaded.add(cache);
+                        }
+                    }
+                }
+            } else {
+                for (String key : wanted) {
+                    if (!result.containsKey(key)) {
+                        misses.add(key);
+                    }
+                }
             }
         }
 
-        if (uri != null) {
-            return mMap.get(uri);
-        } else {
-            return null;
+        // Values are loaded without the lock, so that other readers are not blocked.
+        result.putAll(loadValues(unloaded));
+        if (!misses.isEmpty()) {
+            long now = System.currentTimeMillis();
+            Map<String, Global> globals = GlobalsLoader.loadMany(mContentResolver, misses);
+            if (globals != null) {
+                for (Global global : globals.values()) {
+                    if (!global.isExpired(now)) {
+                        result.put(global.getKey(), global);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads the values left out of the initial loading with a single query, and
+     * keeps them in the cache unless the records have been changed in the meantime.
+     *
+     * @param globals The globals whose values have not been loaded.
+     * @return the globals with their values mapped by key.
+     */
+    private Map<String, Global> loadValues(List<Global> globals) {
+        Map<String, Global> result = new HashMap<String, Global>();
+        if (globals.isEmpty()) {
+            return result;
+        }
+
+        List<String> ids = new ArrayList<String>(globals.size());
+        for (Global global : globals) {
+            ids.add(String.valueOf(global.getId()));
+        }
+        Map<Uri, Global> loaded = GlobalsLoader.loadByIds(mContentResolver, ids);
+
+        synchronized (this) {
+            for (Entry<Uri, Global> entry : loaded.entrySet()) {
+                Global global = entry.getValue();
+                Global cache = mMap.get(entry.getKey());
+                if (cache != null && !cache.isValueLoaded()) {
+                    mMap.put(entry.getKey(), global);
+                }
+                result.put(global.getKey(), global);
+            }
         }
+        return result;
     }
 
     public synchronized void clear() {
@@ -254,36 +567,142 @@ import java.util.concurrent.CopyOnWriteArrayList;
         mTempMap.clear();
     }
 
-    private synchronized void put(Uri uri, Global global) {
-        String key = global.getKey();
-        mTempMap.remove(key);
-
-        awaitLoading();
-        if (uri != null) {
-            mMap.put(uri, global);
+    /**
+     * Applies a batch of changes notified by the provider in one step.
+     *
+     * @param uris    The {@link Uri}s of the changed records.
+     * @param globals The current globals of the changed records. Records which are not
+     *                contained have been removed.
+     */
+    private void applyChanges(Collection<Uri> uris, Map<Uri, Global> globals) {
+        List<Global> removed = new ArrayList<Global>();
+        List<Global> updated = new ArrayList<Global>();
+        synchronized (this) {
+            awaitLoading();
+            for (Uri uri : uris) {
+                Global global = globals.get(uri);
+                if (global != null) {
+                    mTempMap.remove(global.getKey());
+                    mMap.put(uri, global);
+                    updated.add(global);
+                } else {
+                    Global old = mMap.remove(uri);
+                    if (old != null) {
+                        mTempMap.remove(old.getKey());
+                        removed.add(old);
+                    }
+                }
+            }
         }
 
-        dispatchInsertedOrUpdated(global);
+        for (Global global : removed) {
+            dispatchRemoved(global);
+        }
+        for (Global global : updated) {
+            dispatchInsertedOrUpdated(global);
+        }
     }
 
-    private synchronized void remove(Uri uri) {
-        awaitLoading();
-        if (uri != null) {
-            Global removed = mMap.remove(uri);
-            if (removed != null) {
-                String removedKey = removed.getKey();
-                if (removedKey != null && mTempMap != null) {
-                    if (mTempMap.containsKey(removedKey)) {
-                        mTempMap.remove(removedKey);
-                    }
+    /**
+     * Replaces all cached globals with the globals reloaded from the database.
+     *
+     * @param globals The globals on the database.
+     */
+    private void replaceAll(Map<Uri, Global> globals) {
+        List<Global> removed = new ArrayList<Global>();
+        List<Global> updated = new ArrayList<Global>();
+        synchronized (this) {
+            awaitLoading();
+            for (Entry<Uri, Global> entry : mMap.entrySet()) {
+                if (!globals.containsKey(entry.getKey())) {
+                    removed.add(entry.getValue());
+                }
+            }
+            for (Entry<Uri, Global> entry : globals.entrySet()) {
+                Global global = entry.getValue();
+                Global old = mMap.get(entry.getKey());
+                if (old == null || !isSameValue(old, global)) {
+                    updated.add(global);
                 }
+                mTempMap.remove(global.getKey());
+            }
+            for (Global global : removed) {
+                mTempMap.remove(global.getKey());
+            }
+            mMap.clear();
+            mMap.putAll(globals);
+        }
+
+        for (Global global : removed) {
+            dispatchRemoved(global);
+        }
+        for (Global global : updated) {
+            dispatchInsertedOrUpdated(global);
+        }
+    }
+
+    /**
+     * Applies the changes after the last applied sequence number.
+     * All globals are reloaded if the change log no longer holds the whole range.
+     * The runs on the loader thread and on the observer thread are serialized, and each
+     * starts from the sequence number applied by the previous one.
+     *
+     * @param toSequence The last sequence number notified by the provider.
+     */
+    private void sync(long toSequence) {
+        synchronized (this) {
+            awaitLoading();
+        }
+        synchronized (mSyncLock) {
+            syncLocked(toSequence);
+        }
+    }
+
+    private void syncLocked(long toSequence) {
+        long lastSequence;
+        synchronized (this) {
+            lastSequence = mLastSequence;
+        }
+        if (toSequence <= lastSequence) {
+            return;
+        }
+
+        GlobalsLoader.ChangeSet changes = GlobalsLoader.loadChanges(mContentResolver, lastSequence);
+        if (changes == null || changes.getLastSequence() <= lastSequence) {
+            return;
+        }
+
+        if (!changes.isComplete()) {
+            long sequence = GlobalsLoader.loadSequence(mContentResolver);
+            Map<Uri, Global> globals = GlobalsLoader.loadAll(mContentResolver);
+            if (globals != null && sequence > lastSequence) {
+                replaceAll(globals);
+                setLastSequence(sequence);
             }
+            return;
         }
 
-        Global global = mMap.get(uri);
-        dispatchRemoved(global);
+        Set<String> ids = changes.getIds();
+        Map<Uri, Global> globals = GlobalsLoader.loadByIds(mContentResolver, ids);
+        List<Uri> changedUris = new ArrayList<Uri>(ids.size());
+        for (String id : ids) {
+            changedUris.add(Uri.withAppendedPath(GlobalsContract.CONTENT_URI, id));
+        }
+        applyChanges(changedUris, globals);
+        setLastSequence(changes.getLastSequence());
     }
 
+    private synchronized void setLastSequence(long sequence) {
+        if (sequence > mLastSequence) {
+            mLastSequence = sequence;
+        }
+    }
+
+    private static boolean isSameValue(Global a, Global b) {
+        Object value = a.getValue();
+        return a.keyEquals(b.getKey())
+                && (value == null ? b.getValue() == null : value.equals(b.getValue()));
+    }
 
     private void dispatchRemoved(Global global) {
         for (CacheListener l : mCacheListeners) {
@@ -314,63 +733,22 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
-            synchronized (mCache) {
-                mCache.awaitLoading();
-            }
-
-            if (uri == null) {
+            if (uri == null
+                    || !GlobalsContract.Changes.CONTENT_URI.getPath().equals(uri.getPath())) {
                 return;
             }
 
-            String lastPath = uri.getLastPathSegment();
-            try {
-                Long.parseLong(lastPath);
-            } catch (NumberFormatException e) {
+            String to = uri.getQueryParameter(GlobalsContract.Changes.PARAM_TO);
+            if (TextUtils.isEmpty(to)) {
                 return;
             }
 
-            Cursor cursor = null;
             try {
-                cursor = GlobalsLoader.loadCursor(mContentResolver, uri);
-                if (cursor == null) {
-                    return;
-                }
-
-                int count = cursor.getCount();
-                if (count == 0) {
-                    onGlobalRemoved(uri);
-                    return;
-                }
-
-                if (cursor.moveToNext()) {
-                    Global global = Global.cursorRowToGlobal(cursor);
-                    onGlobalInsertedOrUpdated(uri, global);
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+                mCache.sync(Long.parseLong(to));
+            } catch (NumberFormatException e) {
+                // Ignore a malformed notification, the next one syncs the cache.
             }
         }
-
-        /**
-         * Called when a global was removed.
-         *
-         * @param uri The {@link Uri} of the removed record.
-         */
-        private void onGlobalRemoved(Uri uri) {
-            mCache.remove(uri);
-        }
-
-        /**
-         * Called when a global was newly inserted or updated.
-         *
-         * @param uri    The {@link Uri} of the inserted or updated record.
-         * @param global The inserted or updated global.
-         */
-        private void onGlobalInsertedOrUpdated(Uri uri, Global global) {
-            mCache.put(uri, global);
-        }
     }
 
     /**
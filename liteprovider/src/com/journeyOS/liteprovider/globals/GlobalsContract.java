@@ -37,6 +37,21 @@ public final class GlobalsContract implements BaseColumns {
      */
     public static final String AUTHORITY = "com.journeyOS.globalsprovider";
 
+    /**
+     * The name of the meta-data of the provider to relax durability for write throughput.
+     * With the value true, globals.db is synced at checkpoints of the write-ahead log
+     * instead of on every commit. The database stays consistent after a crash, but
+     * the latest commits can be lost on power loss. Durability is not relaxed by default.
+     * <pre>
+     * &lt;provider android:name="com.journeyOS.liteprovider.globals.GlobalsProvider" ...&gt;
+     *     &lt;meta-data android:name="com.journeyOS.globals.RELAXED_DURABILITY"
+     *         android:value="true" /&gt;
+     * &lt;/provider&gt;
+     * </pre>
+     */
+    public static final String META_DATA_RELAXED_DURABILITY =
+            "com.journeyOS.globals.RELAXED_DURABILITY";
+
     /**
      * An URI to the authority for the globals provider.
      */
@@ -85,4 +100,320 @@ public final class GlobalsContract implements BaseColumns {
      * <P>Type: TEXT</P>
      */
     public static final String VALUE = "value";
+
+    /**
+     * The time when a global expires in milliseconds since the epoch.
+     * A global without an expiry is kept until it is removed.
+     * Expired globals are not returned by the cache and are deleted by the provider.
+     * <P>Type: INTEGER</P>
+     */
+    public static final String EXPIRES_AT = "expiresAt";
+
+    /**
+     * The size of the value in bytes. It can only be queried.
+     * <P>Type: INTEGER</P>
+     */
+    public static final String VALUE_SIZE = "valueSize";
+
+    /**
+     * The value if its size is at most {@link #INLINE_VALUE_MAX_SIZE}, otherwise null.
+     * It can only be queried, so that metadata can be loaded without large values.
+     * <P>Type: TEXT</P>
+     */
+    public static final String INLINE_VALUE = "inlineValue";
+
+    /**
+     * The maximum size in bytes of {@link #INLINE_VALUE}.
+     */
+    public static final int INLINE_VALUE_MAX_SIZE = 1024;
+
+    /**
+     * The method to add {@link #EXTRA_DELTA} to an integer or a long value atomically.
+     * The argument of the call is the key. The call fails with an
+     * {@link IllegalArgumentException} and the value is kept if the new value overflows.
+     */
+    public static final String METHOD_INCREMENT = "increment";
+
+    /**
+     * The method to replace the value with {@link #EXTRA_VALUE} only if the current value equals
+     * {@link #EXTRA_EXPECT}. The argument of the call is the key.
+     */
+    public static final String METHOD_COMPARE_AND_SET = "compareAndSet";
+
+    /**
+     * The method to add {@link #EXTRA_MEMBER} to a string set atomically.
+     * The argument of the call is the key.
+     */
+    public static final String METHOD_ADD_TO_SET = "addToSet";
+
+    /**
+     * The method to remove {@link #EXTRA_MEMBER} from a string set atomically.
+     * The argument of the call is the key.
+     */
+    public static final String METHOD_REMOVE_FROM_SET = "removeFromSet";
+
+    /**
+     * The delta to add. An {@link Integer} delta works on integer values and
+     * a {@link Long} delta works on long values.
+     */
+    public static final String EXTRA_DELTA = "delta";
+
+    /**
+     * The expected value of a compare-and-set. An absent extra expects no mapping for the key.
+     */
+    public static final String EXTRA_EXPECT = "expect";
+
+    /**
+     * The new value of a compare-and-set, or the resulting value of an atomic operation.
+     */
+    public static final String EXTRA_VALUE = "value";
+
+    /**
+     * The member of a string set to add or remove.
+     */
+    public static final String EXTRA_MEMBER = "member";
+
+    /**
+     * The query parameter of {@link android.content.ContentResolver#bulkInsert} to choose how
+     * a row for an existing key is handled. It is one of {@link #CONFLICT_IGNORE},
+     * {@link #CONFLICT_REPLACE} and {@link #CONFLICT_ABORT}, and defaults to
+     * {@link #CONFLICT_IGNORE}.
+     */
+    public static final String PARAM_CONFLICT = "conflict";
+
+    /**
+     * Keeps the existing value and skips the row, like {@link android.content.ContentResolver#insert}.
+     */
+    public static final String CONFLICT_IGNORE = "ignore";
+
+    /**
+     * Updates the type and the value of the existing record. The ID of the record is kept.
+     */
+    public static final String CONFLICT_REPLACE = "replace";
+
+    /**
+     * Fails the whole batch and rolls back the rows already written.
+     */
+    public static final String CONFLICT_ABORT = "abort";
+
+    /**
+     * The method to bulk insert the rows in {@link #EXTRA_VALUES} with the policy in
+     * {@link #EXTRA_CONFLICT}. The result holds the outcome of each row in
+     * {@link #EXTRA_OUTCOMES}. All rows are ignored if the calling package is unknown.
+     * A row without {@link #EXPIRES_AT} keeps the expiry of the record it replaces.
+     */
+    public static final String METHOD_BULK_INSERT = "bulkInsert";
+
+    /**
+     * The rows of {@link #METHOD_BULK_INSERT} as an array of
+     * {@link android.content.ContentValues}.
+     */
+    public static final String EXTRA_VALUES = "values";
+
+    /**
+     * The conflict policy of {@link #METHOD_BULK_INSERT}.
+     *
+     * @see #PARAM_CONFLICT
+     */
+    public static final String EXTRA_CONFLICT = "conflict";
+
+    /**
+     * The outcomes of {@link #METHOD_BULK_INSERT} as an int array in the order of the rows.
+     * Each outcome is one of {@link #OUTCOME_IGNORED}, {@link #OUTCOME_INSERTED} and
+     * {@link #OUTCOME_UPDATED}.
+     */
+    public static final String EXTRA_OUTCOMES = "outcomes";
+
+    public static final int OUTCOME_IGNORED = 0;
+    public static final int OUTCOME_INSERTED = 1;
+    public static final int OUTCOME_UPDATED = 2;
+
+    /**
+     * The method to read a global by key without a cursor. The argument of the call is the key.
+     * The result holds the row in {@link #EXTRA_GLOBAL}.
+     */
+    public static final String METHOD_GET = "get";
+
+    /**
+     * The row of the global returned by {@link #METHOD_GET} as
+     * {@link android.content.ContentValues}. It is absent if no mapping exists for the key.
+     */
+    public static final String EXTRA_GLOBAL = "global";
+
+    /**
+     * The method to read the latest sequence number of {@link Changes}.
+     */
+    public static final String METHOD_GET_SEQUENCE = "getSequence";
+
+    /**
+     * The sequence number returned by {@link #METHOD_GET_SEQUENCE}.
+     */
+    public static final String EXTRA_SEQUENCE = "sequence";
+
+    /**
+     * The method to apply the operations in {@link #EXTRA_OPERATIONS} with each sub-batch
+     * isolated. A sub-batch starts at each operation which allows a yield, as in
+     * {@link android.content.ContentProvider#applyBatch}. A failed sub-batch is rolled back
+     * without failing the others. The result holds {@link #EXTRA_RESULTS} and
+     * {@link #EXTRA_FAILED_BATCHES}.
+     */
+    public static final String METHOD_APPLY_BATCH = "applyBatch";
+
+    /**
+     * The operations of {@link #METHOD_APPLY_BATCH} as an
+     * {@link java.util.ArrayList} of {@link android.content.ContentProviderOperation}.
+     */
+    public static final String EXTRA_OPERATIONS = "operations";
+
+    /**
+     * The results of {@link #METHOD_APPLY_BATCH} as an array of
+     * {@link android.content.ContentProviderResult} in the order of the operations.
+     * The results of the operations in failed sub-batches are null.
+     */
+    public static final String EXTRA_RESULTS = "results";
+
+    /**
+     * The failed sub-batches of {@link #METHOD_APPLY_BATCH} as an int array holding the index
+     * of the first operation of each.
+     */
+    public static final String EXTRA_FAILED_BATCHES = "failedBatches";
+
+    /**
+     * Indicates whether an atomic operation has been applied. A compare-and-set is applied when
+     * the expected value matched, and a set operation is applied when the membership changed.
+     */
+    public static final String EXTRA_CHANGED = "changed";
+
+    /**
+     * The binary snapshot of all globals.
+     * Open {@link #CONTENT_URI} for reading to stream the whole globals table through a pipe
+     * with one IPC instead of paging rows through a cursor window.
+     */
+    public static final class Snapshot {
+
+        /**
+         * Cannot be instantiated.
+         */
+        private Snapshot() {
+        }
+
+        /**
+         * The content:// style URI for the snapshot.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(GlobalsContract.CONTENT_URI, "snapshot");
+
+        /**
+         * The MIME type of the snapshot stream.
+         */
+        public static final String CONTENT_TYPE = "application/vnd.journeyOS.globals.snapshot";
+
+        /**
+         * The query parameter to stream only the size instead of values larger than
+         * {@link GlobalsContract#INLINE_VALUE_MAX_SIZE}. Such values are read later by ID.
+         */
+        public static final String PARAM_LAZY = "lazy";
+    }
+
+    /**
+     * The globals table published in a memory-mapped file.
+     * Open {@link #CONTENT_URI} for reading and map the file to read the globals without IPC.
+     * The provider publishes the current table when the file is opened, and a version
+     * counter in the header lets readers detect a table being rewritten.
+     */
+    public static final class Mapping {
+
+        /**
+         * Cannot be instantiated.
+         */
+        private Mapping() {
+        }
+
+        /**
+         * The content:// style URI for the mapped file.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(GlobalsContract.CONTENT_URI, "mapping");
+
+        /**
+         * The MIME type of the mapped file.
+         */
+        public static final String CONTENT_TYPE = "application/vnd.journeyOS.globals.mapping";
+    }
+
+    /**
+     * The change log of the globals table.
+     * Every write appends a row with a monotonically increasing sequence number in the same
+     * transaction, and only the latest rows are retained.
+     * <p>
+     * {@link #CONTENT_URI} is also notified once per transaction with the sequence range
+     * written by the transaction in {@link #PARAM_FROM} and {@link #PARAM_TO}.
+     * Query it with {@link #PARAM_SINCE} to read the changes after a sequence number.
+     */
+    public static final class Changes {
+
+        /**
+         * Cannot be instantiated.
+         */
+        private Changes() {
+        }
+
+        /**
+         * The content:// style URI for the change log.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(GlobalsContract.CONTENT_URI, "changes");
+
+        /**
+         * The MIME type of the results from {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/vnd.journeyOS.globals.changes";
+
+        /**
+         * The query parameter to read the changes with a sequence number greater than it.
+         */
+        public static final String PARAM_SINCE = "since";
+
+        /**
+         * The query parameter of a notification holding the first sequence number
+         * written by the transaction.
+         */
+        public static final String PARAM_FROM = "from";
+
+        /**
+         * The query parameter of a notification holding the last sequence number
+         * written by the transaction.
+         */
+        public static final String PARAM_TO = "to";
+
+        /**
+         * The sequence number of a change.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String SEQUENCE = "seq";
+
+        /**
+         * The {@link GlobalsContract#_ID} of the changed global.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String GLOBAL_ID = "globalId";
+
+        /**
+         * The {@link GlobalsContract#KEY} of the changed global.
+         * <P>Type: TEXT</P>
+         */
+        public static final String KEY = "key";
+
+        /**
+         * The operation of a change, which is one of {@link #OPERATION_INSERT},
+         * {@link #OPERATION_UPDATE} and {@link #OPERATION_DELETE}.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String OPERATION = "operation";
+
+        public static final int OPERATION_INSERT = 1;
+        public static final int OPERATION_UPDATE = 2;
+        public static final int OPERATION_DELETE = 3;
+    }
 }
@@ -17,10 +17,23 @@
 package com.journeyOS.liteprovider.globals;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /* package */ class GlobalsLoader {
@@ -30,16 +43,52 @@ import java.util.concurrent.ConcurrentHashMap;
             GlobalsContract.KEY,
             GlobalsContract.TYPE,
             GlobalsContract.VALUE,
-            GlobalsContract.PACKAGE_NAME
+            GlobalsContract.PACKAGE_NAME,
+            GlobalsContract.EXPIRES_AT
+    };
+
+    /**
+     * The projection of {@link #loadAllPaged}, which leaves out values larger than
+     * {@link GlobalsContract#INLINE_VALUE_MAX_SIZE}.
+     */
+    private static final String[] LAZY_PROJECTION = {
+            GlobalsContract._ID,
+            GlobalsContract.KEY,
+            GlobalsContract.TYPE,
+            GlobalsContract.INLINE_VALUE,
+            GlobalsContract.PACKAGE_NAME,
+            GlobalsContract.EXPIRES_AT,
+            GlobalsContract.VALUE_SIZE
+    };
+
+    private static final String[] CHANGES_PROJECTION = {
+            GlobalsContract.Changes.SEQUENCE,
+            GlobalsContract.Changes.GLOBAL_ID
     };
 
     private static final String SELECTION = GlobalsContract.KEY + "=?";
 
+    /**
+     * The maximum number of keys bound to a single IN-list.
+     * SQLite limits the number of host parameters of a statement to 999.
+     */
+    private static final int MAX_KEYS_PER_QUERY = 500;
+
     /**
      * This clause is used to speed up queries.
      */
     private static final String SORT_ORDER = GlobalsContract._ID + " DESC LIMIT 1";
 
+    /**
+     * The number of rows in a page of {@link #loadAllPaged}, so that a page fits in
+     * a single cursor window.
+     */
+    private static final int PAGE_SIZE = 256;
+
+    private static final String PAGE_SELECTION = GlobalsContract._ID + ">?";
+
+    private static final String PAGE_SORT_ORDER = GlobalsContract._ID + " LIMIT " + PAGE_SIZE;
+
     private GlobalsLoader() {
     }
 
@@ -60,45 +109,269 @@ import java.util.concurrent.ConcurrentHashMap;
 
     /**
      * Loads the {@link Global} for the key.
+     * The row is read through {@link GlobalsContract#METHOD_GET} without a cursor.
      *
      * @param resolver The {@link ContentResolver}.
      * @return the {@link Global} for the key.
      */
     public static Global load(ContentResolver resolver, String key) {
-        Global global = null;
+        Bundle result = resolver.call(GlobalsContract.CONTENT_URI, GlobalsContract.METHOD_GET,
+                key, null);
+        if (result == null) {
+            return null;
+        }
+
+        ContentValues values = result.getParcelable(GlobalsContract.EXTRA_GLOBAL);
+        return values != null ? new Global(values) : null;
+    }
+
+    public static Cursor loadCursor(ContentResolver resolver, String key) {
+        return resolver.query(GlobalsContract.CONTENT_URI, PROJECTION,
+                SELECTION, new String[]{key}, SORT_ORDER);
+    }
+
+    /**
+     * Loads the {@link Global}s for the keys with an IN-list query.
+     * Keys are split only if they exceed {@link #MAX_KEYS_PER_QUERY}.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @param keys     The keys to load.
+     * @return the {@link Global}s mapped by key, or null if a query returned no cursor.
+     * Keys without records are not contained.
+     */
+    public static Map<String, Global> loadMany(ContentResolver resolver, Collection<String> keys) {
+        Map<String, Global> map = new HashMap<String, Global>();
+        List<String> chunk = new ArrayList<String>(Math.min(keys.size(), MAX_KEYS_PER_QUERY));
+        for (String key : keys) {
+            chunk.add(key);
+            if (chunk.size() >= MAX_KEYS_PER_QUERY) {
+                if (!loadChunk(resolver, GlobalsContract.KEY, chunk, map)) {
+                    return null;
+                }
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty() && !loadChunk(resolver, GlobalsContract.KEY, chunk, map)) {
+            return null;
+        }
+        return map;
+    }
+
+    /**
+     * Loads the {@link Global}s for the IDs with an IN-list query.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @param ids      The IDs to load.
+     * @return the {@link Global}s mapped by {@link Uri}. IDs without records are not contained.
+     */
+    public static Map<Uri, Global> loadByIds(ContentResolver resolver, Collection<String> ids) {
+        Map<String, Global> loaded = new HashMap<String, Global>();
+        List<String> chunk = new ArrayList<String>(Math.min(ids.size(), MAX_KEYS_PER_QUERY));
+        for (String id : ids) {
+            chunk.add(id);
+            if (chunk.size() >= MAX_KEYS_PER_QUERY) {
+                loadChunk(resolver, GlobalsContract._ID, chunk, loaded);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            loadChunk(resolver, GlobalsContract._ID, chunk, loaded);
+        }
+
+        Map<Uri, Global> map = new HashMap<Uri, Global>();
+        for (Global global : loaded.values()) {
+            map.put(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, global.getId()),
+                    global);
+        }
+        return map;
+    }
+
+    /**
+     * Loads the {@link Global}s whose column matches one of the arguments into the map.
+     *
+     * @return true if the query returned a cursor.
+     */
+    private static boolean loadChunk(ContentResolver resolver, String column, List<String> args,
+                                     Map<String, Global> map) {
+        StringBuilder selection = new StringBuilder(column).append(" IN (");
+        int size = args.size();
+        for (int i = 0; i < size; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(")");
+
         Cursor cursor = null;
         try {
             cursor = resolver.query(GlobalsContract.CONTENT_URI, PROJECTION,
-                    SELECTION, new String[]{key}, SORT_ORDER);
-
+                    selection.toString(), args.toArray(new String[size]), null);
             if (cursor == null) {
-                return null;
+                return false;
             }
 
             while (cursor.moveToNext()) {
-                global = Global.cursorRowToGlobal(cursor);
+                Global global = Global.cursorRowToGlobal(cursor);
+                map.put(global.getKey(), global);
             }
+            return true;
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
-
-        return global;
-    }
-
-    public static Cursor loadCursor(ContentResolver resolver, String key) {
-        return resolver.query(GlobalsContract.CONTENT_URI, PROJECTION,
-                SELECTION, new String[]{key}, SORT_ORDER);
     }
 
     /**
      * Loads the {@link Global}s on the database.
+     * The globals are streamed as a {@link GlobalsContract.Snapshot} with one IPC,
+     * and queried through a cursor if the snapshot is not available.
      *
      * @param resolver The {@link ContentResolver}.
      * @return the {@link Global}s on the database.
      */
     public static Map<Uri, Global> loadAll(ContentResolver resolver) {
+        Map<Uri, Global> map = loadSnapshot(resolver, GlobalsContract.Snapshot.CONTENT_URI);
+        return map != null ? map : queryAll(resolver);
+    }
+
+    /**
+     * Loads the {@link Global}s on the database, leaving out values larger than
+     * {@link GlobalsContract#INLINE_VALUE_MAX_SIZE}. Such globals hold only their metadata
+     * and their values should be loaded with {@link #loadByIds(ContentResolver, Collection)}.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @return the {@link Global}s on the database.
+     * @see Global#isValueLoaded()
+     */
+    public static Map<Uri, Global> loadAllLazily(ContentResolver resolver) {
+        Uri uri = GlobalsContract.Snapshot.CONTENT_URI.buildUpon()
+                .appendQueryParameter(GlobalsContract.Snapshot.PARAM_LAZY, "true")
+                .build();
+        Map<Uri, Global> map = loadSnapshot(resolver, uri);
+        return map != null ? map : queryAll(resolver);
+    }
+
+    /**
+     * Loads the {@link Global}s on the database page by page in the order of their IDs,
+     * so that the whole table is never held in a single cursor or map.
+     * Each page queries the IDs after the last ID of the previous page, which seeks
+     * the primary key instead of skipping the rows of an offset. Values larger than
+     * {@link GlobalsContract#INLINE_VALUE_MAX_SIZE} are left out as
+     * {@link #loadAllLazily(ContentResolver)} does.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @param callback The callback to receive each page.
+     * @return true if all pages have been loaded, false if the provider is not available or
+     * does not support the query.
+     */
+    public static boolean loadAllPaged(ContentResolver resolver, PageCallback callback) {
+        long lastId = Long.MIN_VALUE;
+        while (true) {
+            Cursor cursor;
+            try {
+                cursor = resolver.query(GlobalsContract.CONTENT_URI, LAZY_PROJECTION,
+                        PAGE_SELECTION, new String[]{String.valueOf(lastId)}, PAGE_SORT_ORDER);
+            } catch (UnsupportedOperationException e) {
+                // The provider does not support the query.
+                return false;
+            }
+            if (cursor == null) {
+                return false;
+            }
+
+            Map<Uri, Global> page = new HashMap<Uri, Global>();
+            try {
+                while (cursor.moveToNext()) {
+                    Global global = lazyRowToGlobal(cursor);
+                    lastId = global.getId();
+                    page.put(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, lastId),
+                            global);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (!page.isEmpty()) {
+                callback.onPage(page);
+            }
+            if (page.size() < PAGE_SIZE) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link Global} of the current row of a cursor queried with
+     * {@link #LAZY_PROJECTION}. A global whose value was left out holds only its metadata.
+     */
+    private static Global lazyRowToGlobal(Cursor cursor) {
+        ContentValues values = Global.cursorRowToValues(cursor);
+        Long valueSize = values.getAsLong(GlobalsContract.VALUE_SIZE);
+        values.remove(GlobalsContract.VALUE_SIZE);
+        if (!values.containsKey(GlobalsContract.INLINE_VALUE) && valueSize != null
+                && valueSize > GlobalsContract.INLINE_VALUE_MAX_SIZE) {
+            Long expiresAt = values.getAsLong(GlobalsContract.EXPIRES_AT);
+            return Global.lazy(values.getAsLong(GlobalsContract._ID),
+                    values.getAsString(GlobalsContract.KEY),
+                    values.getAsString(GlobalsContract.TYPE),
+                    expiresAt != null ? expiresAt : Global.NO_EXPIRY, valueSize);
+        }
+
+        Object value = values.get(GlobalsContract.INLINE_VALUE);
+        values.remove(GlobalsContract.INLINE_VALUE);
+        if (value instanceof Long) {
+            values.put(GlobalsContract.VALUE, (Long) value);
+        } else if (value instanceof Float) {
+            values.put(GlobalsContract.VALUE, (Float) value);
+        } else if (value instanceof String) {
+            values.put(GlobalsContract.VALUE, (String) value);
+        } else if (value instanceof byte[]) {
+            values.put(GlobalsContract.VALUE, (byte[]) value);
+        }
+        return new Global(values);
+    }
+
+    /**
+     * Maps the globals table published by the provider.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @return the mapping to read with {@link GlobalsMapping#read(ByteBuffer)},
+     * or null if the mapping is not available.
+     */
+    public static ByteBuffer loadMapping(ContentResolver resolver) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = resolver.openFileDescriptor(GlobalsContract.Mapping.CONTENT_URI, "r");
+            return descriptor != null ? GlobalsMapping.map(descriptor) : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static Map<Uri, Global> loadSnapshot(ContentResolver resolver, Uri uri) {
+        InputStream in = null;
+        try {
+            in = resolver.openInputStream(uri);
+            return in != null ? GlobalsSnapshot.read(in) : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static Map<Uri, Global> queryAll(ContentResolver resolver) {
         Map<Uri, Global> map = new ConcurrentHashMap<Uri, Global>();
         Cursor cursor = null;
         try {
@@ -121,4 +394,104 @@ import java.util.concurrent.ConcurrentHashMap;
 
         return map;
     }
+
+    /**
+     * Loads the latest sequence number of the change log.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @return the latest sequence number, or -1 if the provider is not available.
+     */
+    public static long loadSequence(ContentResolver resolver) {
+        Bundle result = resolver.call(GlobalsContract.CONTENT_URI,
+                GlobalsContract.METHOD_GET_SEQUENCE, null, null);
+        if (result == null) {
+            return -1;
+        }
+        return result.getLong(GlobalsContract.EXTRA_SEQUENCE, -1);
+    }
+
+    /**
+     * Loads the changes after the sequence number from the change log.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @param since    The sequence number which has already been applied.
+     * @return the changes, or null if the provider is not available.
+     */
+    public static ChangeSet loadChanges(ContentResolver resolver, long since) {
+        Uri uri = GlobalsContract.Changes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(GlobalsContract.Changes.PARAM_SINCE, String.valueOf(since))
+                .build();
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, CHANGES_PROJECTION, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+
+            ChangeSet changes = new ChangeSet(since);
+            while (cursor.moveToNext()) {
+                long sequence = cursor.getLong(0);
+                if (changes.mLastSequence == since && sequence != since + 1) {
+                    // The changes right after since have been trimmed from the log.
+                    changes.mComplete = false;
+                }
+                changes.mLastSequence = sequence;
+                changes.mIds.add(cursor.getString(1));
+            }
+            return changes;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * The callback of {@link #loadAllPaged(ContentResolver, PageCallback)}.
+     */
+    public interface PageCallback {
+
+        /**
+         * Called for each loaded page in the order of IDs.
+         *
+         * @param page The {@link Global}s of the page mapped by {@link Uri}.
+         */
+        public void onPage(Map<Uri, Global> page);
+    }
+
+    /**
+     * The changes read from the change log.
+     */
+    public static class ChangeSet {
+
+        private final Set<String> mIds = new HashSet<String>();
+        private long mLastSequence;
+        private boolean mComplete = true;
+
+        private ChangeSet(long since) {
+            mLastSequence = since;
+        }
+
+        /**
+         * Returns the distinct IDs of the changed globals.
+         */
+        public Set<String> getIds() {
+            return mIds;
+        }
+
+        /**
+         * Returns the last sequence number of the changes.
+         */
+        public long getLastSequence() {
+            return mLastSequence;
+        }
+
+        /**
+         * Returns whether the changes cover the whole range after the requested sequence number.
+         * When false, some changes have been trimmed and all globals should be reloaded.
+         */
+        public boolean isComplete() {
+            return mComplete;
+        }
+    }
 }
@@ -26,7 +26,10 @@ import android.os.Build;
 
 import com.journeyOS.liteprovider.utils.LogUtils;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -38,13 +41,25 @@ public class GlobalsManager {
     private static List<OnGlobalsProviderChangeListener> mListeners =
             new CopyOnWriteArrayList<OnGlobalsProviderChangeListener>();
 
-    private static SharedPreferences mPreferences = null;
+    private static Globals mPreferences = null;
 
     public static void initialize(Application context) {
         mContext = context;
         mPreferences = Globals.getInstance(mContext);
     }
 
+    /**
+     * Initializes the globals, loading the hot keys before the other globals.
+     * Keys read at startup are also learned and loaded first in the next run.
+     *
+     * @param context The application.
+     * @param hotKeys The keys read at startup.
+     */
+    public static void initialize(Application context, Collection<String> hotKeys) {
+        mContext = context;
+        mPreferences = Globals.getInstance(mContext, hotKeys);
+    }
+
     private static void isInitialize() {
         if (mContext == null || mPreferences == null) {
             throw new IllegalArgumentException("you has not initialize!");
@@ -348,6 +363,22 @@ public class GlobalsManager {
         return mPreferences.getStringSet(key, defaultValue);
     }
 
+    /**
+     * Retrieve values for several keys from the globals provider at once.
+     * Values which are not cached yet are fetched in one round trip.
+     *
+     * @param keys The names of the globals provider to retrieve.
+     * @return Returns the values mapped by key. Keys which do not exist are not contained.
+     */
+    public static Map<String, ?> getMany(Collection<String> keys) {
+        isInitialize();
+        if (keys == null) {
+            LogUtils.w(TAG, "keys was null");
+            return Collections.emptyMap();
+        }
+        return mPreferences.getMany(keys);
+    }
+
     /**
      * Remove globals provider for key
      * Only the owner(who ceate) can remove!
@@ -383,6 +414,137 @@ public class GlobalsManager {
         }
     }
 
+    /**
+     * Set a value in the globals provider which expires after the time to live.
+     *
+     * @param key       The name of the globals provider to modify.
+     * @param value     The new value for the globals provider.
+     * @param ttlMillis The time to live in milliseconds.
+     */
+    public static void putWithTtl(String key, Object value, long ttlMillis) {
+        isInitialize();
+        if (key == null) {
+            LogUtils.w(TAG, "key was null");
+            return;
+        }
+        mPreferences.putWithTtl(key, value, ttlMillis, false);
+    }
+
+    /**
+     * Add the delta to a int value in the globals provider atomically.
+     * A missing value is treated as zero.
+     *
+     * @param key   The name of the globals provider to modify.
+     * @param delta The delta to add.
+     * @return Returns the new value.
+     */
+    public static int increment(String key, int delta) {
+        isInitialize();
+        if (key == null) {
+            LogUtils.w(TAG, "key was null");
+            return 0;
+        }
+        return mPreferences.increment(key, delta);
+    }
+
+    /**
+     * Add the delta to a long value in the globals provider atomically.
+     * A missing value is treated as zero.
+     *
+     * @param key   The name of the globals provider to modify.
+     * @param delta The delta to add.
+     * @return Returns the new value.
+     */
+    public static long increment(String key, long delta) {
+        isInitialize();
+        if (key == null) {
+            LogUtils.w(TAG, "key was null");
+            return 0L;
+        }
+        return mPreferences.increment(key, delta);
+    }
+
+    /**
+     * Subtract the delta from a int value in the globals provider atomically.
+     *
+     * @param key   The name of the globals provider to modify.
+     * @param delta The delta to subtract.
+     * @return Returns the new value.
+     */
+    public static int decrement(String key, int delta) {
+        isInitialize();
+        if (key == null) {
+            LogUtils.w(TAG, "key was null");
+            return 0;
+        }
+        return mPreferences.decrement(key, delta);
+    }
+
+    /**
+     * Subtract the delta from a long value in the globals provider atomically.
+     *
+     * @param key   The name of the globals provider to modify.
+     * @param delta The delta to subtract.
+     * @return Returns the new value.
+     */
+    public static long decrement(String key, long delta) {
+        isInitialize();
+        if (key == null) {
+            LogUtils.w(TAG, "key was null");
+            return 0L;
+        }
+        return mPreferences.decrement(key, delta);
+    }
+
+    /**
+     * Set a value in the globals provider only if the current value equals the expected value.
+     *
+     * @param key    The name of the globals provider to modify.
+     * @param expect The expected value, or null if the globals provider should not exist.
+     * @param update The new value for the globals provider.
+     * @return Returns true if the value was set.
+     */
+    public static boolean compareAndSet(String key, Object expect, Object update) {
+        isInitialize();
+        if (key == null) {
+            LogUtils.w(TAG, "key was null");
+            return false;
+        }
+        return mPreferences.compareAndSet(key, expect, update);
+    }
+
+    /**
+     * Add a String to a set of String value in the globals provider atomically.
+     *
+     * @param key    The name of the globals provider to modify.
+     * @param member The String to add.
+     * @return Returns true if the set did not already contain the String.
+     */
+    public static boolean addToStringSet(String key, String member) {
+        isInitialize();
+        if (key == null) {
+            LogUtils.w(TAG, "key was null");
+            return false;
+        }
+        return mPreferences.addToStringSet(key, member);
+    }
+
+    /**
+     * Remove a String from a set of String value in the globals provider atomically.
+     *
+     * @param key    The name of the globals provider to modify.
+     * @param member The String to remove.
+     * @return Returns true if the set contained the String.
+     */
+    public static boolean removeFromStringSet(String key, String member) {
+        isInitialize();
+        if (key == null) {
+            LogUtils.w(TAG, "key was null");
+            return false;
+        }
+        return mPreferences.removeFromStringSet(key, member);
+    }
+
     protected static void dispatchGlobalsProviderChanged(String key) {
         isInitialize();
         for (OnGlobalsProviderChangeListener l : mListeners) {
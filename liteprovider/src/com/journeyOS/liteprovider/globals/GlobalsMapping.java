@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The globals table published by {@link GlobalsProvider} in a memory-mapped file, so that
+ * client processes can read it without IPC.
+ * <p>
+ * The file starts with a header followed by a lazy {@link GlobalsSnapshot}. The header holds
+ * a version counter in the style of a seqlock: the provider makes it odd before rewriting
+ * the table and even again afterwards. A reader copies the table and accepts it only if
+ * the counter was the same even number before and after the copy and the CRC32 in the header
+ * matches, so that a read racing with the provider is detected as torn.
+ * <p>
+ * The file only grows. A reader whose mapping is smaller than the table maps the file again.
+ */
+/* package */ class GlobalsMapping {
+
+    private static final int MAGIC = 0x474c4d50;
+
+    /**
+     * The version of the header. Readers reject other versions.
+     */
+    private static final int VERSION = 1;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_COUNTER = 8;
+    private static final int OFFSET_SEQUENCE = 16;
+    private static final int OFFSET_LENGTH = 24;
+    private static final int OFFSET_CRC = 28;
+    private static final int HEADER_SIZE = 32;
+
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    /**
+     * The number of attempts to read a table which is being rewritten.
+     */
+    private static final int MAX_READ_ATTEMPTS = 3;
+
+    private final File mFile;
+    private final RandomAccessFile mAccessFile;
+    private MappedByteBuffer mBuffer;
+
+    /**
+     * Opens the file to publish tables.
+     *
+     * @param file The file to map.
+     * @throws IOException if the file could not be mapped.
+     */
+    public GlobalsMapping(File file) throws IOException {
+        mFile = file;
+        mAccessFile = new RandomAccessFile(file, "rw");
+        if (mAccessFile.length() < MIN_CAPACITY) {
+            mAccessFile.setLength(MIN_CAPACITY);
+        }
+        map(mAccessFile.length());
+        if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC || mBuffer.getInt(OFFSET_VERSION) != VERSION) {
+            mBuffer.putInt(OFFSET_VERSION, VERSION);
+            mBuffer.putLong(OFFSET_COUNTER, 0);
+            mBuffer.putInt(OFFSET_LENGTH, 0);
+            mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        }
+    }
+
+    private void map(long capacity) throws IOException {
+        mBuffer = mAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Publishes a table.
+     *
+     * @param table    The lazy {@link GlobalsSnapshot} of the globals.
+     * @param sequence The sequence number of the change log the table is at least as new as.
+     * @throws IOException if the file could not be grown.
+     */
+    public synchronized void publish(byte[] table, long sequence) throws IOException {
+        // Starting from an odd counter left by a crash, the counter is still odd while writing.
+        long counter = (mBuffer.getLong(OFFSET_COUNTER) + 1) | 1;
+        mBuffer.putLong(OFFSET_COUNTER, counter);
+
+        long required = HEADER_SIZE + table.length;
+        if (required > mBuffer.capacity()) {
+            long capacity = mBuffer.capacity();
+            while (capacity < required) {
+                capacity *= 2;
+            }
+            mAccessFile.setLength(capacity);
+            map(capacity);
+        }
+
+        ByteBuffer data = mBuffer.duplicate();
+        data.position(HEADER_SIZE);
+        data.put(table);
+        mBuffer.putLong(OFFSET_SEQUENCE, sequence);
+        mBuffer.putInt(OFFSET_LENGTH, table.length);
+        mBuffer.putInt(OFFSET_CRC, crc32(table));
+        mBuffer.putLong(OFFSET_COUNTER, counter + 1);
+    }
+
+    public synchronized void close() throws IOException {
+        mAccessFile.close();
+    }
+
+    /**
+     * Maps the file opened by the provider for reading.
+     *
+     * @param descriptor The descriptor of the file. It can be closed after mapping.
+     * @return the mapping of the whole file.
+     * @throws IOException if the file could not be mapped.
+     */
+    public static ByteBuffer map(ParcelFileDescriptor descriptor) throws IOException {
+        // The stream shares the descriptor, so it is closed with the descriptor.
+        FileChannel channel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * Reads the table from a mapping.
+     *
+     * @param mapping The mapping of the file.
+     * @return the table, or null if no table has been published, the reads were torn
+     * or the table does not fit in the mapping.
+     */
+    public static Table read(ByteBuffer mapping) {
+        ByteBuffer buffer = mapping.duplicate();
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != VERSION) {
+            return null;
+        }
+
+        for (int i = 0; i < MAX_READ_ATTEMPTS; i++) {
+            long counter = buffer.getLong(OFFSET_COUNTER);
+            if ((counter & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            long sequence = buffer.getLong(OFFSET_SEQUENCE);
+            int length = buffer.getInt(OFFSET_LENGTH);
+            int crc = buffer.getInt(OFFSET_CRC);
+            if (length <= 0 || HEADER_SIZE + (long) length > buffer.capacity()) {
+                if (buffer.getLong(OFFSET_COUNTER) == counter) {
+                    return null;
+                }
+                continue;
+            }
+
+            byte[] table = new byte[length];
+            buffer.position(HEADER_SIZE);
+            buffer.get(table);
+            if (buffer.getLong(OFFSET_COUNTER) != counter || crc32(table) != crc) {
+                continue;
+            }
+
+            try {
+                return new Table(GlobalsSnapshot.read(new ByteArrayInputStream(table)), sequence);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A table read from the mapping.
+     */
+    public static class Table {
+        private final Map<Uri, Global> mGlobals;
+        private final long mSequence;
+
+        private Table(Map<Uri, Global> globals, long sequence) {
+            mGlobals = globals;
+            mSequence = sequence;
+        }
+
+        /**
+         * Returns the globals mapped by {@link Uri}. Large values are not loaded.
+         *
+         * @see Global#isValueLoaded()
+         */
+        public Map<Uri, Global> getGlobals() {
+            return mGlobals;
+        }
+
+        /**
+         * Returns the sequence number of the change log the table is at least as new as.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.journeyOS.liteprovider.globals;
 
+import android.content.ComponentName;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -25,20 +26,47 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteTransactionListener;
 import android.net.Uri;
-
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.os.Process;
+
+import com.journeyOS.liteprovider.utils.LogUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The globals provider.
  * The contract between this provider and applications is defined in {@link GlobalsContract}.
+ * <p>
+ * The methods are called concurrently on binder threads. The state of an operation is
+ * kept per call or per thread, and compiled statements are locked while they are bound.
  *
  * @see GlobalsContract
  */
@@ -50,7 +78,7 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
     /**
      * Indicates an invalid row ID.
      */
-    private static final int INVALID_ID = -1;
+    private static final long INVALID_ID = GlobalsStorage.INVALID_ID;
 
     /**
      * The maximum number of batch operations between yield points.
@@ -58,38 +86,151 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
     private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
 
     /**
-     * The maximum number of bulk insertions between yield points.
+     * The time before starting a new transaction if the lock was actually yielded.
+     * The {@link YieldScheduler} uses it as the upper bound of the adaptive delay.
      */
-    private static final int BULK_INSERTS_PER_YIELD_POINT = 50;
+    protected static final int SLEEP_AFTER_YIELD_DELAY = 4000;
 
     /**
-     * The time before starting a new transaction if the lock was actually yielded.
+     * The number of changed records in a transaction that triggers a passive checkpoint
+     * of the write-ahead log after the commit.
      */
-    protected static final int SLEEP_AFTER_YIELD_DELAY = 4000;
+    private static final int CHECKPOINT_CHANGES_THRESHOLD = 500;
+
+    /**
+     * The maximum number of expired records deleted between yield points of a sweep.
+     */
+    private static final int SWEEP_CHUNK_SIZE = 100;
+
+    /**
+     * The delay added to the next expiry before sweeping, so that records expiring
+     * at nearly the same time are deleted by a single sweep.
+     */
+    private static final long SWEEP_DELAY = 1000;
+
+    /**
+     * The delay before retrying a failed sweep. It doubles on each failure in a row
+     * up to {@link #MAX_SWEEP_RETRY_DELAY}.
+     */
+    private static final long SWEEP_RETRY_DELAY = 5000;
+
+    private static final long MAX_SWEEP_RETRY_DELAY = 5 * 60 * 1000;
+
+    /**
+     * The number of the latest changes retained in the change log.
+     * A client which has fallen further behind reloads all globals.
+     */
+    private static final int MAX_RETAINED_CHANGES = 10000;
+
+    /**
+     * One of this many queries is executed eagerly and timed. The others are left to the
+     * binder transport, which fills the cursor window anyway.
+     */
+    private static final int QUERY_LATENCY_SAMPLE_RATE = 16;
+
+    /**
+     * The mapping file name.
+     */
+    private static final String MAPPING_NAME = "globals.map";
 
     private Context mContext;
-    private DatabaseHelper mDatabaseHelper;
-    private ThreadLocal<DatabaseHelper> mGlobalsHelper;
+    private GlobalsStorage mStorage;
+    private ThreadLocal<GlobalsStorage> mGlobalsStorage;
 
     /**
      * Holds the current transaction for a thread.
      */
     private ThreadLocal<Transaction> mTransactionHolder;
 
-    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    /**
+     * The number of write transactions in progress.
+     */
+    private final AtomicInteger mActiveWriteTransactions = new AtomicInteger();
+
+    /**
+     * The latencies of point reads and sampled queries started while no write transaction
+     * was in progress.
+     */
+    private final LatencyStats mReadLatency = new LatencyStats();
+
+    /**
+     * The latencies of point reads and sampled queries started while a write transaction
+     * was in progress.
+     */
+    private final LatencyStats mContendedReadLatency = new LatencyStats();
+
+    /**
+     * The number of queries, to time one of every {@link #QUERY_LATENCY_SAMPLE_RATE} queries.
+     */
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+
+    /**
+     * The handler to sweep expired records in the background.
+     */
+    private Handler mBackgroundHandler;
+    private HandlerThread mBackgroundThread;
+
+    private final Runnable mSweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sweepExpired();
+        }
+    };
 
     /**
-     * The temporary {@link ContentValues} to for a database operation.
+     * The lock guarding the scheduling of {@link #mSweepRunnable}.
      */
-    private final ContentValues mValues = new ContentValues();
+    private final Object mSweepLock = new Object();
+
+    /**
+     * The time the next sweep is scheduled at, or 0 if none is scheduled.
+     * Guarded by {@link #mSweepLock}.
+     */
+    private long mScheduledSweepAt;
+
+    /**
+     * The delay before retrying the next failed sweep. Only used on the background thread.
+     */
+    private long mSweepRetryDelay = SWEEP_RETRY_DELAY;
+
+    /**
+     * The globals table published for readers in other processes, or null if the file
+     * could not be mapped.
+     */
+    private GlobalsMapping mMapping;
+
+    /**
+     * The lock guarding the publishing of {@link #mMapping}.
+     */
+    private final Object mMappingLock = new Object();
+
+    /**
+     * The sequence number of the published table, or -1 if none has been published.
+     * Guarded by {@link #mMappingLock}.
+     */
+    private long mPublishedSequence = -1;
+
+    /**
+     * Sizes bulk operations between yield points.
+     */
+    private final YieldScheduler mYieldScheduler =
+            new YieldScheduler(MAX_OPERATIONS_PER_YIELD_POINT, SLEEP_AFTER_YIELD_DELAY);
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     private static final int GLOBALS = 1000;
     private static final int GLOBALS_ID = 1001;
+    private static final int CHANGES = 2000;
+    private static final int SNAPSHOT = 3000;
+    private static final int MAPPING = 4000;
 
     static {
         final UriMatcher matcher = sUriMatcher;
         matcher.addURI(GlobalsContract.AUTHORITY, "globals", GLOBALS);
         matcher.addURI(GlobalsContract.AUTHORITY, "globals/#", GLOBALS_ID);
+        matcher.addURI(GlobalsContract.AUTHORITY, "globals/changes", CHANGES);
+        matcher.addURI(GlobalsContract.AUTHORITY, "globals/snapshot", SNAPSHOT);
+        matcher.addURI(GlobalsContract.AUTHORITY, "globals/mapping", MAPPING);
     }
 
     private interface GlobalsDeleteQuery {
@@ -98,8 +239,7 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
          * The query columns to delete records from the globals table.
          */
         public static final String[] COLUMNS = new String[]{
-                GlobalsContract._ID,
-                GlobalsContract.PACKAGE_NAME
+                GlobalsContract._ID
         };
 
         public static final int _ID = 0;
@@ -117,35 +257,112 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
         public static int _ID = 0;
     }
 
+    /**
+     * The expression of {@link GlobalsContract#VALUE_SIZE}.
+     */
+    /* package */ static final String VALUE_SIZE_EXPRESSION = "LENGTH(CAST("
+            + GlobalsContract.VALUE + " AS BLOB))";
+
+    /**
+     * The expression of {@link GlobalsContract#INLINE_VALUE}.
+     */
+    /* package */ static final String INLINE_VALUE_EXPRESSION = "CASE WHEN "
+            + VALUE_SIZE_EXPRESSION + "<=" + GlobalsContract.INLINE_VALUE_MAX_SIZE
+            + " THEN " + GlobalsContract.VALUE + " END";
+
+    private static final String ID_SELECTION = GlobalsContract._ID + "=?";
+
+    private static final String KEY_SELECTION = GlobalsContract.KEY + "=?";
+
     private static final ProjectionMap sGlobalsProjectionMap = ProjectionMap.builder()
             .add(GlobalsContract._ID)
             .add(GlobalsContract.KEY)
             .add(GlobalsContract.TYPE)
             .add(GlobalsContract.VALUE)
             .add(GlobalsContract.PACKAGE_NAME)
+            .add(GlobalsContract.EXPIRES_AT)
+            .add(GlobalsContract.VALUE_SIZE, VALUE_SIZE_EXPRESSION)
+            .add(GlobalsContract.INLINE_VALUE, INLINE_VALUE_EXPRESSION)
+            .build();
+
+    private static final ProjectionMap sChangesProjectionMap = ProjectionMap.builder()
+            .add(GlobalsContract.Changes.SEQUENCE)
+            .add(GlobalsContract.Changes.GLOBAL_ID)
+            .add(GlobalsContract.Changes.KEY)
+            .add(GlobalsContract.Changes.OPERATION)
             .build();
 
     @Override
     public boolean onCreate() {
         mContext = getContext();
-        mDatabaseHelper = DatabaseHelper.getInstance(mContext);
-        mGlobalsHelper = new ThreadLocal<DatabaseHelper>();
-        mGlobalsHelper.set(mDatabaseHelper);
+        mStorage = onCreateStorage(mContext);
+        mGlobalsStorage = new ThreadLocal<GlobalsStorage>();
+        mGlobalsStorage.set(mStorage);
         mTransactionHolder = new ThreadLocal<Transaction>();
+
+        mBackgroundThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        scheduleSweep(System.currentTimeMillis());
+
+        try {
+            mMapping = new GlobalsMapping(new File(mContext.getFilesDir(), MAPPING_NAME));
+        } catch (IOException e) {
+            LogUtils.w(TAG, "failed to map " + MAPPING_NAME + ": " + e.getMessage());
+        }
         return true;
     }
 
+    /**
+     * Creates the storage engine of the globals, which is the SQLite database.
+     * The key-level operations go through {@link GlobalsStorage}, while the operations with
+     * an SQL selection run on its database.
+     *
+     * @param context The context of the provider.
+     * @return the {@link GlobalsStorage}.
+     */
+    /* package */ GlobalsStorage onCreateStorage(Context context) {
+        return new SqliteGlobalsStorage(
+                DatabaseHelper.getInstance(context, isRelaxedDurability(context)));
+    }
+
+    /**
+     * Returns whether the provider is declared with
+     * {@link GlobalsContract#META_DATA_RELAXED_DURABILITY}.
+     */
+    private boolean isRelaxedDurability(Context context) {
+        try {
+            ProviderInfo info = context.getPackageManager().getProviderInfo(
+                    new ComponentName(context, getClass()), PackageManager.GET_META_DATA);
+            return info.metaData != null
+                    && info.metaData.getBoolean(GlobalsContract.META_DATA_RELAXED_DURABILITY);
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the database for the operations with an SQL selection.
+     *
+     * @param writable true to return the database for writing.
+     */
+    private SQLiteDatabase getDatabase(boolean writable) {
+        return mGlobalsStorage.get().getDatabase(writable);
+    }
+
     @Override
     public void shutdown() {
         super.shutdown();
-        mGlobalsHelper.remove();
+        mBackgroundHandler.removeCallbacksAndMessages(null);
+        mBackgroundThread.quitSafely();
+        mGlobalsStorage.remove();
         mTransactionHolder.remove();
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
-        mGlobalsHelper.set(mDatabaseHelper);
+        mGlobalsStorage.set(mStorage);
         SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
         final int match = sUriMatcher.match(uri);
         setTablesProjectionMap(match, builder);
@@ -161,6 +378,18 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
                 cursor = queryGlobal(builder, projection, selection, selectionArgs,
                         sortOrder);
                 break;
+            case CHANGES:
+                String since = uri.getQueryParameter(GlobalsContract.Changes.PARAM_SINCE);
+                if (since != null) {
+                    selectionArgs = insertSelectionArg(selectionArgs, since);
+                    builder.appendWhere(GlobalsContract.Changes.SEQUENCE + ">?");
+                }
+                if (sortOrder == null) {
+                    sortOrder = GlobalsContract.Changes.SEQUENCE;
+                }
+                cursor = queryGlobal(builder, projection, selection, selectionArgs,
+                        sortOrder);
+                break;
             default:
                 break;
         }
@@ -175,8 +404,14 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
 
     private Cursor queryGlobal(SQLiteQueryBuilder builder, String[] projection, String selection,
                                String[] selectionArgs, String sortOrder) {
-        DatabaseHelper helper = mGlobalsHelper.get();
-        SQLiteDatabase db = helper.getReadableDatabase();
+        SQLiteDatabase db = getDatabase(false);
+        if (mQueryCount.getAndIncrement() % QUERY_LATENCY_SAMPLE_RATE != 0) {
+            return builder.query(db, projection, selection, selectionArgs, null, null,
+                    sortOrder, null);
+        }
+
+        boolean contended = mActiveWriteTransactions.get() > 0;
+        long start = System.nanoTime();
         Cursor cursor = builder.query(db, projection, selection, selectionArgs, null, null,
                 sortOrder, null);
 
@@ -184,6 +419,10 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
             return null;
         }
 
+        // Executes the sampled query here, as the binder transport would do, to measure it.
+        cursor.getCount();
+        LatencyStats stats = contended ? mContendedReadLatency : mReadLatency;
+        stats.record(System.nanoTime() - start);
         return cursor;
     }
 
@@ -196,10 +435,11 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
     private Transaction startTransaction(boolean callerIsBatch) {
         Transaction transaction = mTransactionHolder.get();
         if (transaction == null) {
-            DatabaseHelper helper = mGlobalsHelper.get();
-            SQLiteDatabase db = helper.getWritableDatabase();
             transaction = new Transaction(callerIsBatch);
-            transaction.startTransactionForDb(db, GLOBALS_DATABASE_TAG, this);
+            transaction.startTransactionForStorage(mGlobalsStorage.get(), GLOBALS_DATABASE_TAG,
+                    this);
+            transaction.setStartSequence(queryLastSequence());
+            mActiveWriteTransactions.incrementAndGet();
             // Set the transaction for the caller thread.
             mTransactionHolder.set(transaction);
         }
@@ -214,27 +454,48 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
     private void endTransaction(boolean callerIsBatch) {
         Transaction transaction = mTransactionHolder.get();
         if (transaction != null && (!transaction.isBatch() || callerIsBatch)) {
+            int changes = 0;
+            long earliestExpiry = transaction.getEarliestExpiry();
             try {
                 if (transaction.isDirty()) {
-                    Set<Uri> dirtyUris = transaction.getDirtyUris();
-                    notifyChange(dirtyUris);
+                    changes = transaction.getDirtyUris().size();
+                    long lastSequence = queryLastSequence();
+                    trimChanges(lastSequence);
+                    transaction.setPendingSequence(lastSequence);
                 }
                 transaction.finish(callerIsBatch);
             } finally {
                 // Clear the transaction for the caller thread.
                 mTransactionHolder.set(null);
+                mActiveWriteTransactions.decrementAndGet();
+            }
+
+            // The storage has ended the transaction, so observers re-querying on the notification
+            // see the committed changes. Nothing is notified for a rollback.
+            long committedSequence = transaction.getCommittedSequence();
+            if (committedSequence <= transaction.getStartSequence()) {
+                return;
+            }
+            notifyChange(transaction.getStartSequence() + 1, committedSequence);
+
+            if (changes >= CHECKPOINT_CHANGES_THRESHOLD) {
+                checkpoint();
+            }
+            if (earliestExpiry > 0) {
+                scheduleSweep(earliestExpiry + SWEEP_DELAY);
             }
         }
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        mGlobalsHelper.set(mDatabaseHelper);
+        mGlobalsStorage.set(mStorage);
         Transaction transaction = startTransaction(false);
         try {
             Uri result = insertInTransaction(uri, values);
             if (result != null) {
                 transaction.markDirty(result);
+                transaction.noteExpiry(values);
             }
             transaction.markSuccessful(false);
             return result;
@@ -284,16 +545,18 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
 //        if (newKey != null) {
 //            values.put(GlobalsContract.PACKAGE_NAME, getCallingPackage());
 //        }
-        values.put(GlobalsContract.PACKAGE_NAME, getCallingPackage());
+        // Binder threads call concurrently, so work on a copy owned by this call.
+        ContentValues row = new ContentValues(values);
+        row.put(GlobalsContract.PACKAGE_NAME, getCallingPackage());
         long globalId = INVALID_ID;
-        mValues.clear();
-        mValues.putAll(values);
 
-        DatabaseHelper helper = mGlobalsHelper.get();
-        SQLiteDatabase db = helper.getWritableDatabase();
         switch (match) {
             case GLOBALS:
-                globalId = db.insert(DatabaseHelper.Tables.GLOBALS, null, mValues);
+                if (isRowValues(row, true)) {
+                    globalId = insertGlobalRow(row);
+                } else {
+                    globalId = getDatabase(true).insert(DatabaseHelper.Tables.GLOBALS, null, row);
+                }
                 break;
             default:
                 break;
@@ -301,9 +564,39 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
         return globalId;
     }
 
+    /**
+     * Inserts a record into the storage.
+     * Like {@link SQLiteDatabase#insert}, a conflicting key is not inserted.
+     *
+     * @param values The values holding the key, the type, the value and the owner.
+     * @return the ID of the inserted record, or {@link #INVALID_ID} if not inserted.
+     */
+    private long insertGlobalRow(ContentValues values) {
+        return mGlobalsStorage.get().insert(values,
+                values.getAsString(GlobalsContract.PACKAGE_NAME));
+    }
+
+    /**
+     * Returns whether the values consist of the columns the compiled statements write.
+     * The expiry column should be contained even if it is null, so that updating
+     * a record never clears the expiry the caller did not specify.
+     *
+     * @param values      The values to check.
+     * @param withPackage true if the owner column should be contained.
+     */
+    private static boolean isRowValues(ContentValues values, boolean withPackage) {
+        int size = withPackage ? 5 : 4;
+        return values.size() == size
+                && values.getAsString(GlobalsContract.KEY) != null
+                && values.getAsString(GlobalsContract.TYPE) != null
+                && values.containsKey(GlobalsContract.VALUE)
+                && values.containsKey(GlobalsContract.EXPIRES_AT)
+                && (!withPackage || values.getAsString(GlobalsContract.PACKAGE_NAME) != null);
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        mGlobalsHelper.set(mDatabaseHelper);
+        mGlobalsStorage.set(mStorage);
         Transaction transaction = startTransaction(false);
         try {
             List<Uri> deletedUris = deleteInTransaction(uri, selection, selectionArgs);
@@ -325,6 +618,10 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case GLOBALS:
+                if (KEY_SELECTION.equals(selection)
+                        && selectionArgs != null && selectionArgs.length == 1) {
+                    return deleteGlobalForKey(selectionArgs[0]);
+                }
                 return deleteGlobal(selection, selectionArgs);
             case GLOBALS_ID:
                 long globalId = ContentUris.parseId(uri);
@@ -337,41 +634,66 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
         return null;
     }
 
+    /**
+     * Deletes the record for the key owned by the caller from the storage.
+     */
+    private List<Uri> deleteGlobalForKey(String key) {
+        List<Uri> uris = new ArrayList<Uri>();
+        String packageName = getCallingPackage();
+        if (packageName == null) {
+            return uris;
+        }
+
+        GlobalsStorage storage = mGlobalsStorage.get();
+        long globalId = storage.findId(key, packageName);
+        if (globalId == INVALID_ID) {
+            return uris;
+        }
+
+        if (storage.delete(key, packageName)) {
+            uris.add(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, globalId));
+        }
+        return uris;
+    }
+
+    /**
+     * Deletes the records owned by the caller with a single statement.
+     * The affected IDs are collected first in the same transaction, so that the dirty
+     * {@link Uri}s exactly match the deleted records.
+     */
     private List<Uri> deleteGlobal(String selection, String[] selectionArgs) {
-        Uri uri = GlobalsContract.CONTENT_URI;
         List<Uri> uris = new ArrayList<Uri>();
-        Cursor cursor = query(uri, GlobalsDeleteQuery.COLUMNS,
-                selection, selectionArgs, null);
+        String where = DatabaseUtils.concatenateWhere(selection,
+                GlobalsContract.PACKAGE_NAME + "=?");
+        String[] whereArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                new String[]{getCallingPackage()});
+
+        SQLiteDatabase db = getDatabase(true);
+        Cursor cursor = db.query(DatabaseHelper.Tables.GLOBALS, GlobalsDeleteQuery.COLUMNS,
+                where, whereArgs, null, null, null);
 
         if (cursor == null) {
             return uris;
         }
 
-        DatabaseHelper helper = mGlobalsHelper.get();
         try {
-            int count = 0;
-            int lastCount = 0;
             while (cursor.moveToNext()) {
-                SQLiteDatabase db = helper.getWritableDatabase();
                 long globalId = cursor.getLong(GlobalsDeleteQuery._ID);
-                count += db.delete(DatabaseHelper.Tables.GLOBALS,
-                        GlobalsContract._ID + "=?" + " AND " + GlobalsContract.PACKAGE_NAME + "=?",
-                        new String[]{String.valueOf(globalId), getCallingPackage()});
-                if (count > lastCount) {
-                    uris.add(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, globalId));
-                }
-                lastCount = count;
+                uris.add(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, globalId));
             }
         } finally {
             cursor.close();
         }
 
+        if (!uris.isEmpty()) {
+            db.delete(DatabaseHelper.Tables.GLOBALS, where, whereArgs);
+        }
         return uris;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        mGlobalsHelper.set(mDatabaseHelper);
+        mGlobalsStorage.set(mStorage);
         Transaction transaction = startTransaction(false);
         try {
             List<Uri> updatedUris = updateInTransaction(uri, values, selection, selectionArgs);
@@ -381,6 +703,9 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
                 for (Uri updatedUri : updatedUris) {
                     transaction.markDirty(updatedUri);
                 }
+                if (size > 0) {
+                    transaction.noteExpiry(values);
+                }
             }
             transaction.markSuccessful(false);
             return size;
@@ -391,17 +716,22 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
 
     protected List<Uri> updateInTransaction(Uri uri, ContentValues values, String selection,
                                             String[] selectionArgs) {
-        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
         final int match = sUriMatcher.match(uri);
-        setTablesProjectionMap(match, builder);
         switch (match) {
             case GLOBALS:
-                return updateGlobal(builder, values, selection, selectionArgs);
+                if (ID_SELECTION.equals(selection) && selectionArgs != null
+                        && selectionArgs.length == 1 && isRowValues(values, false)) {
+                    return updateGlobalRow(Long.parseLong(selectionArgs[0]), values);
+                }
+                return updateGlobal(values, selection, selectionArgs);
             case GLOBALS_ID:
+                if (selection == null && isRowValues(values, false)) {
+                    return updateGlobalRow(ContentUris.parseId(uri), values);
+                }
                 String globalId = uri.getLastPathSegment();
                 selectionArgs = insertSelectionArg(selectionArgs, globalId);
-                builder.appendWhere(GlobalsContract._ID + "=?");
-                return updateGlobal(builder, values, selection, selectionArgs);
+                selection = DatabaseUtils.concatenateWhere(GlobalsContract._ID + "=?", selection);
+                return updateGlobal(values, selection, selectionArgs);
             default:
                 break;
         }
@@ -409,81 +739,174 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
         return null;
     }
 
-    private List<Uri> updateGlobal(SQLiteQueryBuilder builder, ContentValues values,
-                                   String selection, String[] selectionArgs) {
+    /**
+     * Updates the record for the ID in the storage.
+     */
+    private List<Uri> updateGlobalRow(long globalId, ContentValues values) {
+        List<Uri> uris = new ArrayList<Uri>();
+        if (mGlobalsStorage.get().update(globalId, values)) {
+            uris.add(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, globalId));
+        }
+        return uris;
+    }
+
+    /**
+     * Updates the matched records with a single statement.
+     * The affected IDs are collected first in the same transaction, so that the dirty
+     * {@link Uri}s exactly match the updated records.
+     */
+    private List<Uri> updateGlobal(ContentValues values, String selection,
+                                   String[] selectionArgs) {
         List<Uri> uris = new ArrayList<Uri>();
-        mValues.clear();
-        mValues.putAll(values);
-        // Cannot update the ID field.
-        mValues.remove(GlobalsContract._ID);
+        ContentValues row = new ContentValues(values);
+        // Cannot update the ID field and the owner of a record.
+        row.remove(GlobalsContract._ID);
+        row.remove(GlobalsContract.PACKAGE_NAME);
+        if (row.size() == 0) {
+            return uris;
+        }
 
-        DatabaseHelper helper = mGlobalsHelper.get();
-        SQLiteDatabase db = helper.getWritableDatabase();
-        Cursor cursor = builder.query(db, GlobalsUpdateQuery.COLUMNS, selection, selectionArgs,
-                null, null, null, null);
+        SQLiteDatabase db = getDatabase(true);
+        Cursor cursor = db.query(DatabaseHelper.Tables.GLOBALS, GlobalsUpdateQuery.COLUMNS,
+                selection, selectionArgs, null, null, null);
 
         if (cursor == null) {
             return uris;
         }
 
-        int count = 0;
         try {
-            int lastCount = 0;
             while (cursor.moveToNext()) {
                 long globalId = cursor.getLong(GlobalsUpdateQuery._ID);
-                if (mValues.size() > 0) {
-                    count += db.update(DatabaseHelper.Tables.GLOBALS, mValues,
-                            GlobalsContract._ID + " =?", new String[]{String.valueOf(globalId)});
-                    if (count > lastCount) {
-                        uris.add(ContentUris.withAppendedId(
-                                GlobalsContract.CONTENT_URI, globalId));
-                    }
-                    lastCount = count;
-                }
+                uris.add(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, globalId));
             }
         } finally {
             cursor.close();
         }
+
+        if (!uris.isEmpty()) {
+            db.update(DatabaseHelper.Tables.GLOBALS, row, selection, selectionArgs);
+        }
         return uris;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        mGlobalsHelper.set(mDatabaseHelper);
-        Transaction transaction = startTransaction(true);
+        if (sUriMatcher.match(uri) != GLOBALS) {
+            return 0;
+        }
+
+        mGlobalsStorage.set(mStorage);
+        int[] outcomes = bulkUpsert(values,
+                uri.getQueryParameter(GlobalsContract.PARAM_CONFLICT));
+        int count = 0;
+        for (int outcome : outcomes) {
+            if (outcome != GlobalsContract.OUTCOME_IGNORED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Inserts the rows in a single transaction of the storage.
+     *
+     * @param values   The rows holding the key, the type and the value.
+     * @param conflict The policy for a row of an existing key defined in {@link GlobalsContract}.
+     *                 null means {@link GlobalsContract#CONFLICT_IGNORE}.
+     * @return the outcome of each row in the order of the rows.
+     */
+    private int[] bulkUpsert(ContentValues[] values, String conflict) {
+        if (conflict == null) {
+            conflict = GlobalsContract.CONFLICT_IGNORE;
+        } else if (!GlobalsContract.CONFLICT_IGNORE.equals(conflict)
+                && !GlobalsContract.CONFLICT_REPLACE.equals(conflict)
+                && !GlobalsContract.CONFLICT_ABORT.equals(conflict)) {
+            throw new IllegalArgumentException("unknown conflict policy: " + conflict);
+        }
+
+        boolean abort = GlobalsContract.CONFLICT_ABORT.equals(conflict);
         int numValues = values.length;
+        int[] outcomes = new int[numValues];
+        String packageName = getCallingPackage();
+        if (packageName == null) {
+            // A record needs an owner, so nothing is written for an unknown caller.
+            return outcomes;
+        }
+        Transaction transaction = startTransaction(true);
         int opCount = 0;
+        int batchSize = mYieldScheduler.getBatchSize();
+        long chunkStart = System.nanoTime();
         try {
             for (int i = 0; i < numValues; i++) {
-                Uri inserted = insertInTransaction(uri, values[i]);
-                if (inserted != null) {
-                    // Add the URI of the table as a dirty URI.
-                    transaction.markDirty(inserted);
-                }
+                outcomes[i] = upsertGlobal(values[i], packageName, conflict, transaction);
 
-                if (++opCount >= BULK_INSERTS_PER_YIELD_POINT) {
+                // Yielding commits the rows written so far, so an aborting batch never yields.
+                if (!abort && ++opCount >= batchSize) {
+                    yieldPoint(transaction, opCount, chunkStart);
                     opCount = 0;
-                    try {
-                        yield(transaction);
-                    } catch (RuntimeException re) {
-                        transaction.markYieldFailed();
-                        throw re;
-                    }
+                    batchSize = mYieldScheduler.getBatchSize();
+                    chunkStart = System.nanoTime();
                 }
             }
             transaction.markSuccessful(true);
         } finally {
             endTransaction(true);
         }
-        return numValues;
+        return outcomes;
+    }
+
+    /**
+     * Inserts a row, or handles the existing record for the key with the conflict policy.
+     *
+     * @return the outcome of the row defined in {@link GlobalsContract}.
+     */
+    private int upsertGlobal(ContentValues values, String packageName, String conflict,
+                             Transaction transaction) {
+        if (values == null
+                || values.getAsString(GlobalsContract.KEY) == null
+                || values.getAsString(GlobalsContract.TYPE) == null
+                || !values.containsKey(GlobalsContract.VALUE)) {
+            return GlobalsContract.OUTCOME_IGNORED;
+        }
+
+        GlobalsStorage storage = mGlobalsStorage.get();
+        String key = values.getAsString(GlobalsContract.KEY);
+        long globalId = storage.insert(values, packageName);
+        if (globalId != INVALID_ID) {
+            transaction.markDirty(ContentUris.withAppendedId(GlobalsContract.CONTENT_URI,
+                    globalId));
+            transaction.noteExpiry(values);
+            return GlobalsContract.OUTCOME_INSERTED;
+        }
+        if (GlobalsContract.CONFLICT_ABORT.equals(conflict)) {
+            throw new SQLiteConstraintException("global already exists: " + key);
+        }
+        if (!GlobalsContract.CONFLICT_REPLACE.equals(conflict)) {
+            return GlobalsContract.OUTCOME_IGNORED;
+        }
+
+        globalId = storage.findId(key);
+        if (globalId == INVALID_ID) {
+            return GlobalsContract.OUTCOME_IGNORED;
+        }
+
+        List<Uri> updatedUris = updateGlobalRow(globalId, values);
+        if (updatedUris.isEmpty()) {
+            return GlobalsContract.OUTCOME_IGNORED;
+        }
+        transaction.markDirty(updatedUris.get(0));
+        transaction.noteExpiry(values);
+        return GlobalsContract.OUTCOME_UPDATED;
     }
 
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
-        mGlobalsHelper.set(mDatabaseHelper);
+        mGlobalsStorage.set(mStorage);
         int ypCount = 0;
         int opCount = 0;
+        int chunkFirst = 0;
+        long chunkStart = System.nanoTime();
         Transaction transaction = startTransaction(true);
         try {
             final int numOperations = operations.size();
@@ -496,14 +919,11 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
                 final ContentProviderOperation operation = operations.get(i);
                 if (i > 0 && operation.isYieldAllowed()) {
                     opCount = 0;
-                    try {
-                        if (yield(transaction)) {
-                            ypCount++;
-                        }
-                    } catch (RuntimeException e) {
-                        transaction.markYieldFailed();
-                        throw e;
+                    if (yieldPoint(transaction, i - chunkFirst, chunkStart)) {
+                        ypCount++;
                     }
+                    chunkFirst = i;
+                    chunkStart = System.nanoTime();
                 }
 
                 // Note that actual operations are applied through insert(), update() or delete().
@@ -516,6 +936,386 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
         }
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (GlobalsContract.METHOD_BULK_INSERT.equals(method)) {
+            Parcelable[] rows = extras != null
+                    ? extras.getParcelableArray(GlobalsContract.EXTRA_VALUES) : null;
+            if (rows == null) {
+                throw new IllegalArgumentException("values should not be null");
+            }
+            ContentValues[] values = new ContentValues[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                values[i] = (ContentValues) rows[i];
+            }
+            mGlobalsStorage.set(mStorage);
+            Bundle result = new Bundle();
+            result.putIntArray(GlobalsContract.EXTRA_OUTCOMES,
+                    bulkUpsert(values, extras.getString(GlobalsContract.EXTRA_CONFLICT)));
+            return result;
+        }
+        if (GlobalsContract.METHOD_APPLY_BATCH.equals(method)) {
+            ArrayList<ContentProviderOperation> operations = extras != null
+                    ? extras.<ContentProviderOperation>getParcelableArrayList(
+                    GlobalsContract.EXTRA_OPERATIONS) : null;
+            if (operations == null) {
+                throw new IllegalArgumentException("operations should not be null");
+            }
+            mGlobalsStorage.set(mStorage);
+            return applyIsolatedBatch(operations);
+        }
+        if (GlobalsContract.METHOD_GET.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("key should not be null");
+            }
+            mGlobalsStorage.set(mStorage);
+            return getGlobal(arg);
+        }
+        if (GlobalsContract.METHOD_GET_SEQUENCE.equals(method)) {
+            mGlobalsStorage.set(mStorage);
+            Bundle result = new Bundle();
+            result.putLong(GlobalsContract.EXTRA_SEQUENCE, queryLastSequence());
+            return result;
+        }
+        if (!isAtomicMethod(method)) {
+            return super.call(method, arg, extras);
+        }
+        if (arg == null) {
+            throw new IllegalArgumentException("key should not be null");
+        }
+
+        mGlobalsStorage.set(mStorage);
+        Transaction transaction = startTransaction(false);
+        try {
+            Bundle result = callInTransaction(method, arg, extras != null ? extras : new Bundle(),
+                    transaction);
+            transaction.markSuccessful(false);
+            return result;
+        } finally {
+            endTransaction(false);
+        }
+    }
+
+    /**
+     * Applies the operations in one transaction with each sub-batch isolated. A sub-batch
+     * starts at each operation which allows a yield. When an operation fails, the transaction
+     * is rolled back to its last commit, which is the start or the latest yield, and the
+     * sub-batches since then are applied again without the failed one. So one bad operation
+     * does not fail and retry the whole batch.
+     * <p>
+     * Savepoints are not used for this, since a ROLLBACK TO statement is taken by
+     * {@link SQLiteDatabase} for the end of its own transaction on some platform versions.
+     *
+     * @param operations The operations to apply.
+     * @return the {@link Bundle} holding {@link GlobalsContract#EXTRA_RESULTS} and
+     * {@link GlobalsContract#EXTRA_FAILED_BATCHES}.
+     */
+    private Bundle applyIsolatedBatch(ArrayList<ContentProviderOperation> operations) {
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+        Set<Integer> failedBatches = new TreeSet<Integer>();
+        Transaction transaction = startTransaction(true);
+        try {
+            // The first operation and the dirty URIs since the last commit of the transaction.
+            int committedEnd = 0;
+            Set<Uri> committedUris = new HashSet<Uri>();
+            int start = 0;
+            while (start < numOperations) {
+                int end = start + 1;
+                while (end < numOperations && !operations.get(end).isYieldAllowed()) {
+                    end++;
+                }
+                if (end - start >= MAX_OPERATIONS_PER_YIELD_POINT) {
+                    throw new IllegalArgumentException("Too many operations between yield points.");
+                }
+                if (failedBatches.contains(start)) {
+                    start = end;
+                    continue;
+                }
+
+                long chunkStart = System.nanoTime();
+                if (!applySubBatch(operations, results, start, end)) {
+                    failedBatches.add(start);
+                    transaction.rollback(this, committedUris);
+                    start = committedEnd;
+                    continue;
+                }
+                if (end < numOperations && yieldPoint(transaction, end - start, chunkStart)) {
+                    committedEnd = end;
+                    committedUris = new HashSet<Uri>(transaction.getDirtyUris());
+                }
+                start = end;
+            }
+            transaction.markSuccessful(true);
+        } finally {
+            endTransaction(true);
+        }
+
+        int[] failed = new int[failedBatches.size()];
+        int index = 0;
+        for (int batch : failedBatches) {
+            failed[index++] = batch;
+        }
+        Bundle result = new Bundle();
+        result.putParcelableArray(GlobalsContract.EXTRA_RESULTS, results);
+        result.putIntArray(GlobalsContract.EXTRA_FAILED_BATCHES, failed);
+        return result;
+    }
+
+    /**
+     * Applies the operations from start to end. The results of a failed sub-batch are null.
+     *
+     * @return true if the sub-batch was applied, false if an operation failed.
+     */
+    private boolean applySubBatch(ArrayList<ContentProviderOperation> operations,
+                                  ContentProviderResult[] results, int start, int end) {
+        try {
+            for (int i = start; i < end; i++) {
+                // Note that actual operations are applied through insert(), update() or delete().
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            return true;
+        } catch (OperationApplicationException e) {
+            LogUtils.w(TAG, "sub-batch at " + start + " failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            LogUtils.w(TAG, "sub-batch at " + start + " failed: " + e.getMessage());
+        }
+
+        for (int i = start; i < end; i++) {
+            results[i] = null;
+        }
+        return false;
+    }
+
+    /**
+     * Answers a point read for a key with a {@link Bundle}, so that the caller does not
+     * need a cursor, a cursor window and a binder cursor transport for a single row.
+     *
+     * @param key The key to look up.
+     * @return the {@link Bundle} holding {@link GlobalsContract#EXTRA_GLOBAL} if a mapping
+     * exists for the key.
+     */
+    private Bundle getGlobal(String key) {
+        boolean contended = mActiveWriteTransactions.get() > 0;
+        long start = System.nanoTime();
+        ContentValues values = mGlobalsStorage.get().get(key);
+        LatencyStats stats = contended ? mContendedReadLatency : mReadLatency;
+        stats.record(System.nanoTime() - start);
+
+        Bundle result = new Bundle();
+        if (values != null) {
+            result.putParcelable(GlobalsContract.EXTRA_GLOBAL, values);
+        }
+        return result;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        int match = sUriMatcher.match(uri);
+        if (match != SNAPSHOT && match != MAPPING) {
+            return super.openFile(uri, mode);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException(uri.getLastPathSegment() + " is read-only: " + mode);
+        }
+        if (match == MAPPING) {
+            if (mMapping == null) {
+                throw new FileNotFoundException("mapping is not available");
+            }
+            publishMappingIfStale();
+            return ParcelFileDescriptor.open(mMapping.getFile(),
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+
+        // The snapshot is written on another thread, so pass the storage explicitly.
+        return openPipeHelper(uri, GlobalsContract.Snapshot.CONTENT_TYPE, null,
+                mStorage, sSnapshotWriter);
+    }
+
+    /**
+     * Writes a snapshot of the globals in the storage to a pipe.
+     */
+    private static final PipeDataWriter<GlobalsStorage> sSnapshotWriter =
+            new PipeDataWriter<GlobalsStorage>() {
+                @Override
+                public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                                            String mimeType, Bundle opts, GlobalsStorage storage) {
+                    Cursor cursor = null;
+                    OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+                    try {
+                        boolean lazy = uri.getBooleanQueryParameter(
+                                GlobalsContract.Snapshot.PARAM_LAZY, false);
+                        cursor = storage.scan(lazy);
+                        if (cursor != null) {
+                            GlobalsSnapshot.write(cursor, out);
+                        }
+                    } catch (IOException e) {
+                        // The reader has closed the pipe.
+                        LogUtils.w(TAG, "failed to write snapshot: " + e.getMessage());
+                    } finally {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            };
+
+    private static boolean isAtomicMethod(String method) {
+        return GlobalsContract.METHOD_INCREMENT.equals(method)
+                || GlobalsContract.METHOD_COMPARE_AND_SET.equals(method)
+                || GlobalsContract.METHOD_ADD_TO_SET.equals(method)
+                || GlobalsContract.METHOD_REMOVE_FROM_SET.equals(method);
+    }
+
+    /**
+     * Runs an atomic read-modify-write operation for a key.
+     * The read and the write happen in the same transaction, so that concurrent callers
+     * from any process never lose an update.
+     *
+     * @param method      The atomic method defined in {@link GlobalsContract}.
+     * @param key         The key to operate on.
+     * @param extras      The arguments of the operation.
+     * @param transaction The current transaction.
+     * @return the {@link Bundle} holding {@link GlobalsContract#EXTRA_VALUE} and
+     * {@link GlobalsContract#EXTRA_CHANGED}.
+     */
+    protected Bundle callInTransaction(String method, String key, Bundle extras,
+                                       Transaction transaction) {
+        Global current = queryGlobalForKey(key);
+        Object currentValue = current != null ? current.getValue() : null;
+        Object newValue;
+        boolean applied;
+        if (GlobalsContract.METHOD_INCREMENT.equals(method)) {
+            newValue = increment(currentValue, extras.get(GlobalsContract.EXTRA_DELTA));
+            applied = true;
+        } else if (GlobalsContract.METHOD_COMPARE_AND_SET.equals(method)) {
+            Object expect = extras.getSerializable(GlobalsContract.EXTRA_EXPECT);
+            applied = expect == null ? current == null : expect.equals(currentValue);
+            newValue = applied ? extras.getSerializable(GlobalsContract.EXTRA_VALUE) : currentValue;
+            if (applied && newValue == null) {
+                throw new IllegalArgumentException("value should not be null");
+            }
+        } else {
+            String member = extras.getString(GlobalsContract.EXTRA_MEMBER);
+            boolean add = GlobalsContract.METHOD_ADD_TO_SET.equals(method);
+            newValue = updateStringSet(currentValue, member, add);
+            applied = newValue != null && !newValue.equals(currentValue);
+        }
+
+        if (newValue != null && !newValue.equals(currentValue)) {
+            Uri uri = writeGlobal(current, key, newValue);
+            transaction.markDirty(uri);
+        }
+
+        Bundle result = new Bundle();
+        result.putBoolean(GlobalsContract.EXTRA_CHANGED, applied);
+        if (newValue != null) {
+            result.putSerializable(GlobalsContract.EXTRA_VALUE, (Serializable) newValue);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the delta to the current value.
+     *
+     * @param currentValue The current value, or null to start from zero.
+     * @param delta        The {@link Integer} or {@link Long} delta.
+     * @return the new value.
+     * @throws IllegalArgumentException if the new value overflows the type of the value.
+     */
+    private Object increment(Object currentValue, Object delta) {
+        if (delta instanceof Integer) {
+            if (currentValue == null) {
+                return delta;
+            } else if (currentValue instanceof Integer) {
+                long sum = (long) (Integer) currentValue + (Integer) delta;
+                if (sum != (int) sum) {
+                    throw new IllegalArgumentException("integer overflow");
+                }
+                return (int) sum;
+            }
+        } else if (delta instanceof Long) {
+            if (currentValue == null) {
+                return delta;
+            } else if (currentValue instanceof Long) {
+                long value = (Long) currentValue;
+                long sum = value + (Long) delta;
+                // The sum overflows if both operands have the sign opposite to it.
+                if (((value ^ sum) & ((Long) delta ^ sum)) < 0) {
+                    throw new IllegalArgumentException("long overflow");
+                }
+                return sum;
+            }
+        } else {
+            throw new IllegalArgumentException("delta should be an integer or a long");
+        }
+        throw new IllegalStateException("global is " + currentValue.getClass());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object updateStringSet(Object currentValue, String member, boolean add) {
+        if (member == null) {
+            throw new IllegalArgumentException("member should not be null");
+        }
+        if (currentValue != null && !(currentValue instanceof Set<?>)) {
+            throw new IllegalStateException("global is " + currentValue.getClass());
+        }
+
+        Set<String> values = new HashSet<String>();
+        if (currentValue != null) {
+            values.addAll((Set<String>) currentValue);
+        } else if (!add) {
+            return null;
+        }
+        if (add) {
+            values.add(member);
+        } else {
+            values.remove(member);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the {@link Global} for the key in the storage.
+     *
+     * @param key The key to look up.
+     * @return the {@link Global} for the key, or null if no mapping exists.
+     */
+    private Global queryGlobalForKey(String key) {
+        ContentValues values = mGlobalsStorage.get().get(key);
+        return values != null ? new Global(values) : null;
+    }
+
+    /**
+     * Writes the value for the key, inserting a new record owned by the caller if needed.
+     *
+     * @param current The current {@link Global} for the key, or null if no mapping exists.
+     * @param key     The key to write.
+     * @param value   The new value.
+     * @return the {@link Uri} of the written record.
+     */
+    private Uri writeGlobal(Global current, String key, Object value) {
+        // An atomic update keeps the expiry of the current record.
+        long expiresAt = current != null ? current.getExpiresAt() : Global.NO_EXPIRY;
+        ContentValues values = new Global(key, value, expiresAt).toContentValues();
+        long globalId;
+        if (current == null) {
+            values.put(GlobalsContract.PACKAGE_NAME, getCallingPackage());
+            globalId = insertGlobalRow(values);
+            if (globalId == INVALID_ID) {
+                throw new IllegalStateException("failed to insert " + key);
+            }
+        } else {
+            globalId = current.getId();
+            updateGlobalRow(globalId, values);
+        }
+        return ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, globalId);
+    }
+
     /**
      * Yields the transaction to let other threads run.
      *
@@ -524,23 +1324,219 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
      * @see SQLiteDatabase#yieldIfContendedSafely(long)
      */
     protected boolean yield(Transaction transaction) {
-        SQLiteDatabase db = transaction.getDbForTag(GLOBALS_DATABASE_TAG);
-        return db != null && db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+        return yield(transaction, SLEEP_AFTER_YIELD_DELAY);
     }
 
     /**
-     * Notifies the registered observer that rows were changed.
+     * Yields the transaction to let other threads run.
      *
-     * @param dirtyUris The {@link Uri}s that were changed.
+     * @param transaction          The transaction to yield.
+     * @param sleepAfterYieldDelay The time to sleep if the transaction was yielded.
+     * @return true if the transaction was yielded.
+     * @see SQLiteDatabase#yieldIfContendedSafely(long)
      */
-    protected void notifyChange(Set<Uri> dirtyUris) {
-        if (dirtyUris == null || dirtyUris.isEmpty()) {
+    protected boolean yield(Transaction transaction, long sleepAfterYieldDelay) {
+        GlobalsStorage storage = transaction.getStorageForTag(GLOBALS_DATABASE_TAG);
+        if (storage == null) {
+            return false;
+        }
+        if (transaction.isDirty()) {
+            // A yield commits the changes so far, so they are notified even if the rest is
+            // rolled back.
+            transaction.setPendingSequence(storage.getLastSequence());
+        }
+        return storage.yieldIfContendedSafely(sleepAfterYieldDelay);
+    }
+
+    /**
+     * Yields the transaction with the delay chosen by the {@link YieldScheduler}
+     * and reports the chunk to it.
+     *
+     * @param transaction The transaction to yield.
+     * @param operations  The number of operations since the last yield point.
+     * @param chunkStart  The {@link System#nanoTime()} of the last yield point.
+     * @return true if the transaction was yielded.
+     */
+    private boolean yieldPoint(Transaction transaction, int operations, long chunkStart) {
+        long heldNanos = System.nanoTime() - chunkStart;
+        long sleepMillis = mYieldScheduler.getSleepAfterYieldMillis(heldNanos);
+        boolean yielded;
+        try {
+            yielded = yield(transaction, sleepMillis);
+        } catch (RuntimeException e) {
+            transaction.markYieldFailed();
+            throw e;
+        }
+        mYieldScheduler.onYieldPoint(operations, heldNanos, sleepMillis, yielded);
+        return yielded;
+    }
+
+    /**
+     * Schedules a sweep at the time unless one is scheduled earlier.
+     *
+     * @param sweepAt The time to sweep in milliseconds since the epoch.
+     */
+    private void scheduleSweep(long sweepAt) {
+        synchronized (mSweepLock) {
+            if (mScheduledSweepAt > 0 && mScheduledSweepAt <= sweepAt) {
+                return;
+            }
+            mScheduledSweepAt = sweepAt;
+            mBackgroundHandler.removeCallbacks(mSweepRunnable);
+            mBackgroundHandler.postDelayed(mSweepRunnable,
+                    Math.max(0, sweepAt - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Deletes the expired records and schedules the next sweep at the earliest expiry left.
+     * A failure, such as a full disk or a locked database, is logged and the sweep is retried
+     * with a growing delay, so that it never takes the provider process down.
+     */
+    private void sweepExpired() {
+        synchronized (mSweepLock) {
+            mScheduledSweepAt = 0;
+        }
+        long nextExpiry;
+        try {
+            deleteExpired();
+            nextExpiry = mGlobalsStorage.get().getNextExpiry();
+        } catch (RuntimeException e) {
+            LogUtils.w(TAG, "failed to sweep expired globals: " + e);
+            scheduleSweep(System.currentTimeMillis() + mSweepRetryDelay);
+            mSweepRetryDelay = Math.min(mSweepRetryDelay * 2, MAX_SWEEP_RETRY_DELAY);
             return;
         }
+        mSweepRetryDelay = SWEEP_RETRY_DELAY;
+        if (nextExpiry > 0) {
+            scheduleSweep(nextExpiry + SWEEP_DELAY);
+        }
+    }
+
+    /**
+     * Deletes the expired records in chunks of {@link #SWEEP_CHUNK_SIZE} with yield points
+     * between them. All deletions are notified once when the sweep ends.
+     */
+    private void deleteExpired() {
+        mGlobalsStorage.set(mStorage);
+        long now = System.currentTimeMillis();
+        GlobalsStorage storage = mGlobalsStorage.get();
+        Transaction transaction = startTransaction(true);
+        try {
+            int deleted;
+            do {
+                long chunkStart = System.nanoTime();
+                deleted = storage.deleteExpired(now, SWEEP_CHUNK_SIZE);
+                if (deleted > 0) {
+                    transaction.markDirty();
+                }
+                if (deleted == SWEEP_CHUNK_SIZE) {
+                    yieldPoint(transaction, deleted, chunkStart);
+                }
+            } while (deleted == SWEEP_CHUNK_SIZE);
+            transaction.markSuccessful(true);
+        } finally {
+            endTransaction(true);
+        }
+    }
 
-        for (Uri uri : dirtyUris) {
-            mContext.getContentResolver().notifyChange(uri, null);
+    /**
+     * Publishes the current globals to the mapping unless the published table is up to date.
+     * The table is published on demand when a client opens the mapping, so that writes do not
+     * pay for a scan of the table which no client reads. A failure is logged and leaves
+     * the previous table, which the client syncs forward from its sequence number.
+     */
+    private void publishMappingIfStale() {
+        synchronized (mMappingLock) {
+            mGlobalsStorage.set(mStorage);
+            Cursor cursor = null;
+            try {
+                // Read the sequence first, so that the table is at least as new as the sequence.
+                long sequence = queryLastSequence();
+                if (sequence == mPublishedSequence) {
+                    return;
+                }
+                cursor = mStorage.scan(true);
+                if (cursor == null) {
+                    return;
+                }
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                GlobalsSnapshot.write(cursor, out);
+                mMapping.publish(out.toByteArray(), sequence);
+                mPublishedSequence = sequence;
+            } catch (IOException e) {
+                LogUtils.w(TAG, "failed to publish mapping: " + e.getMessage());
+            } catch (RuntimeException e) {
+                LogUtils.w(TAG, "failed to publish mapping: " + e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the latest sequence number of the change log.
+     *
+     * @return the latest sequence number, or 0 if nothing has been changed.
+     */
+    private long queryLastSequence() {
+        return mGlobalsStorage.get().getLastSequence();
+    }
+
+    /**
+     * Deletes the changes older than the retained range.
+     *
+     * @param lastSequence The latest sequence number of the change log.
+     */
+    private void trimChanges(long lastSequence) {
+        long oldest = lastSequence - MAX_RETAINED_CHANGES;
+        if (oldest <= 0) {
+            return;
+        }
+
+        mGlobalsStorage.get().trimChanges(oldest);
+    }
+
+    /**
+     * Checkpoints the storage without blocking readers or writers.
+     * A large transaction is followed by a checkpoint, so that the write-ahead log does not
+     * keep growing while bursty batches leave no idle time for the automatic checkpoint.
+     */
+    private void checkpoint() {
+        mGlobalsStorage.get().checkpoint();
+    }
+
+    /**
+     * Notifies the registered observer that rows were changed.
+     * A single notification of {@link GlobalsContract.Changes#CONTENT_URI} is sent per
+     * transaction with the range of sequence numbers written by it.
+     *
+     * @param fromSequence The first sequence number written by the transaction.
+     * @param toSequence   The last sequence number written by the transaction.
+     */
+    protected void notifyChange(long fromSequence, long toSequence) {
+        if (toSequence < fromSequence) {
+            return;
         }
+
+        Uri uri = GlobalsContract.Changes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(GlobalsContract.Changes.PARAM_FROM,
+                        String.valueOf(fromSequence))
+                .appendQueryParameter(GlobalsContract.Changes.PARAM_TO,
+                        String.valueOf(toSequence))
+                .build();
+        mContext.getContentResolver().notifyChange(uri, null);
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStorage.dump(writer);
+        writer.println("Read latency: " + mReadLatency);
+        writer.println("Read latency during writes: " + mContendedReadLatency);
+        writer.println("Yield scheduler: " + mYieldScheduler);
     }
 
     @Override
@@ -551,6 +1547,12 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
                 return GlobalsContract.CONTENT_TYPE;
             case GLOBALS_ID:
                 return GlobalsContract.CONTENT_ITEM_TYPE;
+            case CHANGES:
+                return GlobalsContract.Changes.CONTENT_TYPE;
+            case SNAPSHOT:
+                return GlobalsContract.Snapshot.CONTENT_TYPE;
+            case MAPPING:
+                return GlobalsContract.Mapping.CONTENT_TYPE;
             default:
                 throw new IllegalArgumentException();
         }
@@ -570,6 +1572,10 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
                 builder.setTables(DatabaseHelper.Tables.GLOBALS);
                 builder.setProjectionMap(projectionMap);
                 break;
+            case CHANGES:
+                builder.setTables(DatabaseHelper.Tables.CHANGES);
+                builder.setProjectionMap(sChangesProjectionMap);
+                break;
             default:
                 throw new IllegalStateException("projection map does not exist");
         }
@@ -591,18 +1597,26 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
     /**
      * The helper class for the globals database.
      */
-    private static final class DatabaseHelper extends SQLiteOpenHelper {
+    /* package */ static final class DatabaseHelper extends SQLiteOpenHelper {
 
         /**
          * The database file name.
          */
         private static final String DATABASE_NAME = "globals.db";
-        /* package */ static final int DATABASE_VERSION = 1;
+        /* package */ static final int DATABASE_VERSION = 3;
 
         private static DatabaseHelper sInstance = null;
 
+        private StatementCache mStatementCache;
+
+        /**
+         * Indicates whether commits are synced at checkpoints instead of on every commit.
+         */
+        private final boolean mRelaxedDurability;
+
         public interface Tables {
             public static final String GLOBALS = "globals";
+            public static final String CHANGES = "changes";
         }
 
         /**
@@ -612,19 +1626,66 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
          * @return an instance of the database helper.
          */
         public static synchronized DatabaseHelper getInstance(Context context) {
+            return getInstance(context, false);
+        }
+
+        /**
+         * Returns an instance of the database helper.
+         * The durability is decided by the first call.
+         *
+         * @param context           The application context.
+         * @param relaxedDurability true to sync commits at checkpoints instead of on every commit.
+         * @return an instance of the database helper.
+         */
+        public static synchronized DatabaseHelper getInstance(Context context,
+                                                              boolean relaxedDurability) {
             if (sInstance == null) {
-                sInstance = new DatabaseHelper(context, DATABASE_NAME);
+                sInstance = new DatabaseHelper(context, DATABASE_NAME, relaxedDurability);
             }
             return sInstance;
         }
 
-        protected DatabaseHelper(final Context context, String databaseName) {
+        protected DatabaseHelper(final Context context, String databaseName,
+                                 boolean relaxedDurability) {
             super(context, databaseName, null, DATABASE_VERSION);
+            mRelaxedDurability = relaxedDurability;
+            // Readers use their own connections and are not blocked by a write transaction.
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        /**
+         * Returns the cache of compiled statements for the writable database.
+         *
+         * @return the cache of compiled statements.
+         */
+        public synchronized StatementCache getStatementCache() {
+            if (mStatementCache == null) {
+                mStatementCache = new StatementCache(getWritableDatabase());
+            }
+            return mStatementCache;
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // With write-ahead logging, NORMAL only appends a commit to the log and syncs
+            // the log at checkpoints, so the write lock is not held across an fsync per commit.
+            // The latest commits can then be lost if the device loses power, so it is opt-in.
+            db.execSQL("PRAGMA synchronous=" + (mRelaxedDurability ? "NORMAL" : "FULL"));
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mStatementCache != null) {
+                mStatementCache.close();
+                mStatementCache = null;
+            }
+            super.close();
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
             createGlobalsTable(db);
+            createChangesTable(db);
         }
 
         /**
@@ -642,13 +1703,70 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
                     GlobalsContract.TYPE + " TEXT NOT NULL," +
                     GlobalsContract.VALUE + " TEXT," +
                     GlobalsContract.PACKAGE_NAME + " TEXT NOT NULL," +
+                    GlobalsContract.EXPIRES_AT + " INTEGER," +
                     "UNIQUE (" + GlobalsContract.KEY + ")" +
                     ");");
+            createExpiryIndex(db);
+        }
+
+        /**
+         * Creates the index to find expired records.
+         *
+         * @param db The {@link SQLiteDatabase} in which the index is created.
+         */
+        private void createExpiryIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + Tables.GLOBALS + "_"
+                    + GlobalsContract.EXPIRES_AT + "_index ON " + Tables.GLOBALS
+                    + " (" + GlobalsContract.EXPIRES_AT + ")");
+        }
+
+        /**
+         * Creates a new change log table and the triggers which append a change
+         * for every write to the globals table.
+         * Note that the change log table will be dropped if exists.
+         *
+         * @param db The {@link SQLiteDatabase} in which a new change log table is created.
+         */
+        private void createChangesTable(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.CHANGES);
+            db.execSQL("CREATE TABLE " + Tables.CHANGES +
+                    " (" +
+                    GlobalsContract.Changes.SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    GlobalsContract.Changes.GLOBAL_ID + " INTEGER NOT NULL," +
+                    GlobalsContract.Changes.KEY + " TEXT NOT NULL," +
+                    GlobalsContract.Changes.OPERATION + " INTEGER NOT NULL" +
+                    ");");
+            createChangeTrigger(db, "INSERT", "NEW", GlobalsContract.Changes.OPERATION_INSERT);
+            createChangeTrigger(db, "UPDATE", "NEW", GlobalsContract.Changes.OPERATION_UPDATE);
+            createChangeTrigger(db, "DELETE", "OLD", GlobalsContract.Changes.OPERATION_DELETE);
+        }
+
+        private void createChangeTrigger(SQLiteDatabase db, String event, String row,
+                                         int operation) {
+            String name = Tables.GLOBALS + "_" + event.toLowerCase(Locale.US) + "_log";
+            db.execSQL("DROP TRIGGER IF EXISTS " + name);
+            db.execSQL("CREATE TRIGGER " + name +
+                    " AFTER " + event + " ON " + Tables.GLOBALS +
+                    " BEGIN" +
+                    " INSERT INTO " + Tables.CHANGES + " (" +
+                    GlobalsContract.Changes.GLOBAL_ID + "," +
+                    GlobalsContract.Changes.KEY + "," +
+                    GlobalsContract.Changes.OPERATION + ")" +
+                    " VALUES (" + row + "." + GlobalsContract._ID + "," +
+                    row + "." + GlobalsContract.KEY + "," + operation + ");" +
+                    " END");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // Nothing to do here yet.
+            if (oldVersion < 2) {
+                createChangesTable(db);
+            }
+            if (oldVersion < 3) {
+                db.execSQL("ALTER TABLE " + Tables.GLOBALS + " ADD COLUMN "
+                        + GlobalsContract.EXPIRES_AT + " INTEGER");
+                createExpiryIndex(db);
+            }
         }
 
         @Override
@@ -661,12 +1779,24 @@ public class GlobalsProvider extends ContentProvider implements SQLiteTransactio
     public void onBegin() {
     }
 
+    /**
+     * Called by the storage before it commits. The notifications are dispatched by
+     * {@link #endTransaction} after the storage has ended the transaction.
+     */
     @Override
     public void onCommit() {
+        Transaction transaction = mTransactionHolder.get();
+        if (transaction != null) {
+            transaction.onCommit();
+        }
     }
 
     @Override
     public void onRollback() {
+        Transaction transaction = mTransactionHolder.get();
+        if (transaction != null) {
+            transaction.onRollback();
+        }
     }
 
 }
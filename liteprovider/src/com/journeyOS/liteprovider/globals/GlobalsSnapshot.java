@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The compact binary format of a snapshot of the globals table.
+ * The snapshot is streamed through a pipe by {@link GlobalsProvider} and read sequentially
+ * by {@link GlobalsLoader}, so that all globals are transferred with one IPC.
+ * <p>
+ * The format is a version header followed by the rows. Each row starts with a tag of
+ * its value type and holds the ID, the key, the type, the expiry and the value. A tag of
+ * {@link #TAG_END} terminates the snapshot.
+ * <p>
+ * A lazy snapshot holds the size instead of a large value with a tag of {@link #TAG_LAZY}.
+ */
+/* package */ class GlobalsSnapshot {
+
+    /**
+     * The version of the format. Readers reject other versions.
+     */
+    private static final int VERSION = 3;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TAG_END = 0;
+    private static final byte TAG_NULL = 1;
+    private static final byte TAG_INTEGER = 2;
+    private static final byte TAG_FLOAT = 3;
+    private static final byte TAG_STRING = 4;
+    private static final byte TAG_BLOB = 5;
+    private static final byte TAG_LAZY = 6;
+
+    /**
+     * The query columns of the rows in a snapshot.
+     */
+    public static final String[] COLUMNS = new String[]{
+            GlobalsContract._ID,
+            GlobalsContract.KEY,
+            GlobalsContract.TYPE,
+            GlobalsContract.VALUE,
+            GlobalsContract.EXPIRES_AT,
+            GlobalsProvider.VALUE_SIZE_EXPRESSION
+    };
+
+    /**
+     * The query columns of the rows in a lazy snapshot.
+     */
+    public static final String[] LAZY_COLUMNS = new String[]{
+            GlobalsContract._ID,
+            GlobalsContract.KEY,
+            GlobalsContract.TYPE,
+            GlobalsProvider.INLINE_VALUE_EXPRESSION,
+            GlobalsContract.EXPIRES_AT,
+            GlobalsProvider.VALUE_SIZE_EXPRESSION
+    };
+
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_KEY = 1;
+    private static final int COLUMN_TYPE = 2;
+    private static final int COLUMN_VALUE = 3;
+    private static final int COLUMN_EXPIRES_AT = 4;
+    private static final int COLUMN_VALUE_SIZE = 5;
+
+    private GlobalsSnapshot() {
+    }
+
+    /**
+     * Writes the rows of the {@link Cursor} queried with {@link #COLUMNS} or
+     * {@link #LAZY_COLUMNS}.
+     *
+     * @param cursor The {@link Cursor} to write.
+     * @param out    The stream to write to. It is flushed but not closed.
+     * @throws IOException if the stream could not be written.
+     */
+    public static void write(Cursor cursor, OutputStream out) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        output.writeInt(VERSION);
+        while (cursor.moveToNext()) {
+            switch (cursor.getType(COLUMN_VALUE)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    writeHeader(output, TAG_INTEGER, cursor);
+                    output.writeLong(cursor.getLong(COLUMN_VALUE));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    writeHeader(output, TAG_FLOAT, cursor);
+                    output.writeDouble(cursor.getDouble(COLUMN_VALUE));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    writeHeader(output, TAG_STRING, cursor);
+                    writeBytes(output, cursor.getString(COLUMN_VALUE).getBytes(UTF_8));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    writeHeader(output, TAG_BLOB, cursor);
+                    writeBytes(output, cursor.getBlob(COLUMN_VALUE));
+                    break;
+                case Cursor.FIELD_TYPE_NULL:
+                default:
+                    // Only a value left out of a lazy snapshot has a size.
+                    if (cursor.isNull(COLUMN_VALUE_SIZE)) {
+                        writeHeader(output, TAG_NULL, cursor);
+                    } else {
+                        writeHeader(output, TAG_LAZY, cursor);
+                        output.writeLong(cursor.getLong(COLUMN_VALUE_SIZE));
+                    }
+                    break;
+            }
+        }
+        output.writeByte(TAG_END);
+        output.flush();
+    }
+
+    private static void writeHeader(DataOutputStream output, byte tag, Cursor cursor)
+            throws IOException {
+        output.writeByte(tag);
+        output.writeLong(cursor.getLong(COLUMN_ID));
+        writeBytes(output, cursor.getString(COLUMN_KEY).getBytes(UTF_8));
+        writeBytes(output, cursor.getString(COLUMN_TYPE).getBytes(UTF_8));
+        output.writeLong(cursor.isNull(COLUMN_EXPIRES_AT)
+                ? Global.NO_EXPIRY : cursor.getLong(COLUMN_EXPIRES_AT));
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Reads all globals of a snapshot.
+     *
+     * @param in The stream to read from. It is not closed.
+     * @return the {@link Global}s mapped by {@link Uri}.
+     * @throws IOException if the stream was truncated or has an unknown version.
+     */
+    public static Map<Uri, Global> read(InputStream in) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version: " + version);
+        }
+
+        Map<Uri, Global> map = new ConcurrentHashMap<Uri, Global>();
+        byte tag;
+        while ((tag = input.readByte()) != TAG_END) {
+            long id = input.readLong();
+            String key = readString(input);
+            String type = readString(input);
+            long expiresAt = input.readLong();
+            Uri uri = ContentUris.withAppendedId(GlobalsContract.CONTENT_URI, id);
+            if (tag == TAG_LAZY) {
+                map.put(uri, Global.lazy(id, key, type, expiresAt, input.readLong()));
+                continue;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(GlobalsContract._ID, id);
+            values.put(GlobalsContract.KEY, key);
+            values.put(GlobalsContract.TYPE, type);
+            if (expiresAt != Global.NO_EXPIRY) {
+                values.put(GlobalsContract.EXPIRES_AT, expiresAt);
+            }
+            switch (tag) {
+                case TAG_INTEGER:
+                    values.put(GlobalsContract.VALUE, input.readLong());
+                    break;
+                case TAG_FLOAT:
+                    values.put(GlobalsContract.VALUE, input.readDouble());
+                    break;
+                case TAG_STRING:
+                    values.put(GlobalsContract.VALUE, readString(input));
+                    break;
+                case TAG_BLOB:
+                    values.put(GlobalsContract.VALUE, readBytes(input));
+                    break;
+                case TAG_NULL:
+                    break;
+                default:
+                    throw new IOException("invalid tag: " + tag);
+            }
+            map.put(uri, new Global(values));
+        }
+        return map;
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        return new String(readBytes(input), UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+}
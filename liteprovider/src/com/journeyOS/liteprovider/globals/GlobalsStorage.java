@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteTransactionListener;
+
+import java.io.PrintWriter;
+
+/**
+ * The storage engine beneath {@link GlobalsProvider}.
+ * <p>
+ * This is an internal interface which lets the storage benchmarks and tests drive the engine
+ * directly. It is not a service provider interface: {@link SqliteGlobalsStorage} is the only
+ * engine, and the provider needs its SQL database.
+ * <p>
+ * The engine stores the records of the globals table and the change log, and runs the key-level
+ * operations of the provider: point reads, inserts, updates by ID, deletes by key, scans for
+ * snapshots and the expiry sweep. Upserts are composed of these operations in one transaction.
+ * <p>
+ * The methods are called concurrently on binder threads. Writes are only called between
+ * {@link #beginTransaction} and {@link #endTransaction} on the thread holding the transaction.
+ * <p>
+ * The operations with an SQL selection, which are most queries, updates and deletes, bypass
+ * this interface and run on the database returned from {@link #getDatabase}.
+ */
+/* package */ interface GlobalsStorage {
+
+    /**
+     * Indicates an invalid row ID.
+     */
+    public static final long INVALID_ID = -1;
+
+    /**
+     * Begins a write transaction for the caller thread. Transactions can be nested.
+     *
+     * @param listener The listener to be notified of the transaction, or null.
+     */
+    public void beginTransaction(SQLiteTransactionListener listener);
+
+    /**
+     * Marks the current transaction as successful.
+     */
+    public void setTransactionSuccessful();
+
+    /**
+     * Ends the current transaction. It is committed if marked as successful,
+     * otherwise rolled back.
+     */
+    public void endTransaction();
+
+    /**
+     * Commits the current transaction and starts a new one if other threads wait to write.
+     *
+     * @param sleepAfterYieldDelay The time to sleep if the transaction was yielded.
+     * @return true if the transaction was yielded.
+     * @see SQLiteDatabase#yieldIfContendedSafely(long)
+     */
+    public boolean yieldIfContendedSafely(long sleepAfterYieldDelay);
+
+    /**
+     * Returns whether the caller thread holds the write lock.
+     */
+    public boolean isLockedByCurrentThread();
+
+    /**
+     * Returns the ID of the record for the key.
+     *
+     * @param key The key to look up.
+     * @return the ID, or {@link #INVALID_ID} if no record exists for the key.
+     */
+    public long findId(String key);
+
+    /**
+     * Returns the ID of the record for the key owned by the package.
+     *
+     * @param key         The key to look up.
+     * @param packageName The owner of the record.
+     * @return the ID, or {@link #INVALID_ID} if no such record exists.
+     */
+    public long findId(String key, String packageName);
+
+    /**
+     * Returns the record for the key.
+     *
+     * @param key The key to look up.
+     * @return the {@link ContentValues} holding the ID, the key, the type, the value and
+     * the expiry, or null if no record exists for the key.
+     */
+    public ContentValues get(String key);
+
+    /**
+     * Inserts a record. A record for an existing key is not inserted.
+     *
+     * @param values      The values holding the key, the type, the value and the expiry.
+     * @param packageName The owner of the record.
+     * @return the ID of the inserted record, or {@link #INVALID_ID} if the key exists.
+     */
+    public long insert(ContentValues values, String packageName);
+
+    /**
+     * Updates the key, the type, the value and the expiry of the record for the ID.
+     * The stored expiry is kept if the values do not contain the expiry column.
+     *
+     * @param id     The ID of the record.
+     * @param values The values holding the key, the type, the value and the expiry.
+     * @return true if the record was updated.
+     */
+    public boolean update(long id, ContentValues values);
+
+    /**
+     * Deletes the record for the key owned by the package.
+     *
+     * @param key         The key of the record.
+     * @param packageName The owner of the record.
+     * @return true if the record was deleted.
+     */
+    public boolean delete(String key, String packageName);
+
+    /**
+     * Returns all records in the column order of {@link GlobalsSnapshot#COLUMNS}.
+     *
+     * @param lazy true to leave out values larger than
+     *             {@link GlobalsContract#INLINE_VALUE_MAX_SIZE} as
+     *             {@link GlobalsSnapshot#LAZY_COLUMNS} does.
+     * @return the {@link Cursor} of the records, or null.
+     */
+    public Cursor scan(boolean lazy);
+
+    /**
+     * Returns the earliest expiry of the records.
+     *
+     * @return the earliest expiry, or 0 if no record has an expiry.
+     */
+    public long getNextExpiry();
+
+    /**
+     * Deletes expired records.
+     *
+     * @param now   The current time in milliseconds since the epoch.
+     * @param limit The maximum number of records to delete.
+     * @return the number of deleted records.
+     */
+    public int deleteExpired(long now, int limit);
+
+    /**
+     * Returns the latest sequence number of the change log.
+     *
+     * @return the latest sequence number, or 0 if nothing has been changed.
+     */
+    public long getLastSequence();
+
+    /**
+     * Deletes the changes with a sequence number up to the given one.
+     *
+     * @param sequence The last sequence number to delete.
+     */
+    public void trimChanges(long sequence);
+
+    /**
+     * Flushes the written data without blocking readers or writers, if the engine buffers it.
+     */
+    public void checkpoint();
+
+    /**
+     * Returns the database for the operations with an SQL selection.
+     *
+     * @param writable true to return the database for writing.
+     * @return the database.
+     */
+    public SQLiteDatabase getDatabase(boolean writable);
+
+    /**
+     * Prints the state of the engine.
+     *
+     * @param writer The writer to print to.
+     */
+    public void dump(PrintWriter writer);
+}
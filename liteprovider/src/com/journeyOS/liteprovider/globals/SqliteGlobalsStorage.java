@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.database.sqlite.SQLiteTransactionListener;
+
+import com.journeyOS.liteprovider.globals.GlobalsProvider.DatabaseHelper;
+import com.journeyOS.liteprovider.utils.LogUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * The default {@link GlobalsStorage} on the SQLite database of {@link DatabaseHelper}.
+ * The key-level operations run fixed statements compiled once and kept in the
+ * {@link StatementCache} of the database, and the change log is written by triggers.
+ */
+/* package */ class SqliteGlobalsStorage implements GlobalsStorage {
+    private static final String TAG = SqliteGlobalsStorage.class.getSimpleName();
+
+    private final DatabaseHelper mDatabaseHelper;
+
+    private interface GlobalsKeyQuery {
+
+        /**
+         * The query columns to read a record of the globals table by key.
+         */
+        public static final String[] COLUMNS = new String[]{
+                GlobalsContract._ID,
+                GlobalsContract.KEY,
+                GlobalsContract.TYPE,
+                GlobalsContract.VALUE,
+                GlobalsContract.EXPIRES_AT
+        };
+    }
+
+    /**
+     * The fixed statements of the hot paths.
+     */
+    private interface GlobalsStatements {
+
+        public static final String SELECT_ID_BY_KEY = "SELECT " + GlobalsContract._ID
+                + " FROM " + DatabaseHelper.Tables.GLOBALS
+                + " WHERE " + GlobalsContract.KEY + "=?";
+
+        public static final String SELECT_ID_BY_KEY_AND_PACKAGE = SELECT_ID_BY_KEY
+                + " AND " + GlobalsContract.PACKAGE_NAME + "=?";
+
+        public static final String INSERT = "INSERT INTO " + DatabaseHelper.Tables.GLOBALS
+                + " (" + GlobalsContract.KEY + "," + GlobalsContract.TYPE + ","
+                + GlobalsContract.VALUE + "," + GlobalsContract.PACKAGE_NAME + ","
+                + GlobalsContract.EXPIRES_AT + ")"
+                + " VALUES (?,?,?,?,?)";
+
+        public static final String UPDATE_BY_ID = "UPDATE " + DatabaseHelper.Tables.GLOBALS
+                + " SET " + GlobalsContract.KEY + "=?," + GlobalsContract.TYPE + "=?,"
+                + GlobalsContract.VALUE + "=?," + GlobalsContract.EXPIRES_AT + "=?"
+                + " WHERE " + GlobalsContract._ID + "=?";
+
+        public static final String UPDATE_BY_ID_KEEPING_EXPIRY = "UPDATE "
+                + DatabaseHelper.Tables.GLOBALS
+                + " SET " + GlobalsContract.KEY + "=?," + GlobalsContract.TYPE + "=?,"
+                + GlobalsContract.VALUE + "=?"
+                + " WHERE " + GlobalsContract._ID + "=?";
+
+        public static final String SELECT_NEXT_EXPIRY = "SELECT IFNULL(MIN("
+                + GlobalsContract.EXPIRES_AT + "),0)"
+                + " FROM " + DatabaseHelper.Tables.GLOBALS
+                + " WHERE " + GlobalsContract.EXPIRES_AT + " IS NOT NULL";
+
+        public static final String DELETE_EXPIRED = "DELETE FROM "
+                + DatabaseHelper.Tables.GLOBALS
+                + " WHERE " + GlobalsContract._ID + " IN (SELECT " + GlobalsContract._ID
+                + " FROM " + DatabaseHelper.Tables.GLOBALS
+                + " WHERE " + GlobalsContract.EXPIRES_AT + "<=?"
+                + " LIMIT ?)";
+
+        public static final String DELETE_BY_KEY_AND_PACKAGE = "DELETE FROM "
+                + DatabaseHelper.Tables.GLOBALS
+                + " WHERE " + GlobalsContract.KEY + "=?"
+                + " AND " + GlobalsContract.PACKAGE_NAME + "=?";
+
+        public static final String SELECT_LAST_SEQUENCE = "SELECT IFNULL(MAX("
+                + GlobalsContract.Changes.SEQUENCE + "),0)"
+                + " FROM " + DatabaseHelper.Tables.CHANGES;
+
+        public static final String DELETE_CHANGES_BEFORE = "DELETE FROM "
+                + DatabaseHelper.Tables.CHANGES
+                + " WHERE " + GlobalsContract.Changes.SEQUENCE + "<=?";
+    }
+
+    private static final String ID_SELECTION = GlobalsContract._ID + "=?";
+
+    public SqliteGlobalsStorage(DatabaseHelper helper) {
+        mDatabaseHelper = helper;
+    }
+
+    @Override
+    public void beginTransaction(SQLiteTransactionListener listener) {
+        SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        // With write-ahead logging, an immediate transaction still serializes writers
+        // but lets readers on other connections proceed.
+        if (listener != null) {
+            db.beginTransactionWithListenerNonExclusive(listener);
+        } else {
+            db.beginTransactionNonExclusive();
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        mDatabaseHelper.getWritableDatabase().setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        mDatabaseHelper.getWritableDatabase().endTransaction();
+    }
+
+    @Override
+    public boolean yieldIfContendedSafely(long sleepAfterYieldDelay) {
+        return mDatabaseHelper.getWritableDatabase().yieldIfContendedSafely(sleepAfterYieldDelay);
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread() {
+        return mDatabaseHelper.getWritableDatabase().isDbLockedByCurrentThread();
+    }
+
+    @Override
+    public long findId(String key) {
+        return simpleQueryForId(statements().acquire(GlobalsStatements.SELECT_ID_BY_KEY), key);
+    }
+
+    @Override
+    public long findId(String key, String packageName) {
+        return simpleQueryForId(
+                statements().acquire(GlobalsStatements.SELECT_ID_BY_KEY_AND_PACKAGE),
+                key, packageName);
+    }
+
+    @Override
+    public ContentValues get(String key) {
+        // The compiled point lookup answers missing keys without creating a cursor.
+        long globalId = findId(key);
+        if (globalId == INVALID_ID) {
+            return null;
+        }
+
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        Cursor cursor = db.query(DatabaseHelper.Tables.GLOBALS, GlobalsKeyQuery.COLUMNS,
+                ID_SELECTION, new String[]{String.valueOf(globalId)}, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            if (cursor.moveToFirst()) {
+                return Global.cursorRowToValues(cursor);
+            }
+        } finally {
+            cursor.close();
+        }
+        return null;
+    }
+
+    @Override
+    public long insert(ContentValues values, String packageName) {
+        SQLiteStatement statement = statements().acquire(GlobalsStatements.INSERT);
+        synchronized (statement) {
+            try {
+                statement.bindString(1, values.getAsString(GlobalsContract.KEY));
+                statement.bindString(2, values.getAsString(GlobalsContract.TYPE));
+                DatabaseUtils.bindObjectToProgram(statement, 3,
+                        values.get(GlobalsContract.VALUE));
+                statement.bindString(4, packageName);
+                DatabaseUtils.bindObjectToProgram(statement, 5,
+                        values.get(GlobalsContract.EXPIRES_AT));
+                return statement.executeInsert();
+            } catch (SQLiteConstraintException e) {
+                return INVALID_ID;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    @Override
+    public boolean update(long id, ContentValues values) {
+        // Values without the expiry column keep the stored expiry.
+        boolean withExpiry = values.containsKey(GlobalsContract.EXPIRES_AT);
+        SQLiteStatement statement = statements().acquire(withExpiry
+                ? GlobalsStatements.UPDATE_BY_ID : GlobalsStatements.UPDATE_BY_ID_KEEPING_EXPIRY);
+        synchronized (statement) {
+            try {
+                statement.bindString(1, values.getAsString(GlobalsContract.KEY));
+                statement.bindString(2, values.getAsString(GlobalsContract.TYPE));
+                DatabaseUtils.bindObjectToProgram(statement, 3,
+                        values.get(GlobalsContract.VALUE));
+                if (withExpiry) {
+                    DatabaseUtils.bindObjectToProgram(statement, 4,
+                            values.get(GlobalsContract.EXPIRES_AT));
+                    statement.bindLong(5, id);
+                } else {
+                    statement.bindLong(4, id);
+                }
+                return statement.executeUpdateDelete() > 0;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String key, String packageName) {
+        SQLiteStatement statement = statements().acquire(
+                GlobalsStatements.DELETE_BY_KEY_AND_PACKAGE);
+        synchronized (statement) {
+            try {
+                statement.bindString(1, key);
+                statement.bindString(2, packageName);
+                return statement.executeUpdateDelete() > 0;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    @Override
+    public Cursor scan(boolean lazy) {
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        String[] columns = lazy ? GlobalsSnapshot.LAZY_COLUMNS : GlobalsSnapshot.COLUMNS;
+        return db.query(DatabaseHelper.Tables.GLOBALS, columns, null, null, null, null, null);
+    }
+
+    @Override
+    public long getNextExpiry() {
+        SQLiteStatement statement = statements().acquire(GlobalsStatements.SELECT_NEXT_EXPIRY);
+        synchronized (statement) {
+            return statement.simpleQueryForLong();
+        }
+    }
+
+    @Override
+    public int deleteExpired(long now, int limit) {
+        SQLiteStatement statement = statements().acquire(GlobalsStatements.DELETE_EXPIRED);
+        synchronized (statement) {
+            try {
+                statement.bindLong(1, now);
+                statement.bindLong(2, limit);
+                return statement.executeUpdateDelete();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    @Override
+    public long getLastSequence() {
+        SQLiteStatement statement = statements().acquire(GlobalsStatements.SELECT_LAST_SEQUENCE);
+        synchronized (statement) {
+            return statement.simpleQueryForLong();
+        }
+    }
+
+    @Override
+    public void trimChanges(long sequence) {
+        SQLiteStatement statement = statements().acquire(GlobalsStatements.DELETE_CHANGES_BEFORE);
+        synchronized (statement) {
+            try {
+                statement.bindLong(1, sequence);
+                statement.executeUpdateDelete();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Copies the write-ahead log back into the database without blocking readers or writers.
+     */
+    @Override
+    public void checkpoint() {
+        SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            cursor.moveToFirst();
+        } catch (SQLiteException e) {
+            LogUtils.w(TAG, "checkpoint failed: " + e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public SQLiteDatabase getDatabase(boolean writable) {
+        return writable
+                ? mDatabaseHelper.getWritableDatabase() : mDatabaseHelper.getReadableDatabase();
+    }
+
+    @Override
+    public void dump(PrintWriter writer) {
+        StatementCache statements = statements();
+        writer.println("Statement cache: size=" + statements.size()
+                + " hits=" + statements.getHitCount()
+                + " misses=" + statements.getMissCount());
+    }
+
+    private StatementCache statements() {
+        return mDatabaseHelper.getStatementCache();
+    }
+
+    /**
+     * Runs a compiled point lookup for an ID.
+     *
+     * @param statement The compiled statement selecting a single ID.
+     * @param args      The arguments to bind.
+     * @return the ID, or {@link #INVALID_ID} if no record matched.
+     */
+    private static long simpleQueryForId(SQLiteStatement statement, String... args) {
+        synchronized (statement) {
+            try {
+                statement.bindAllArgsAsStrings(args);
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return INVALID_ID;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+}
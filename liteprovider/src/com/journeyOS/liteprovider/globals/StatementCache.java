@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cache of compiled {@link SQLiteStatement}s for a database.
+ * A statement is compiled once for the fixed SQL and reused by later calls.
+ * <p>
+ * A {@link SQLiteStatement} holds its bound arguments, so callers should synchronize on
+ * the acquired statement while binding and executing it.
+ */
+/* package */ class StatementCache {
+
+    private final SQLiteDatabase mDatabase;
+
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * Creates a new cache for the database.
+     *
+     * @param db The database to compile statements for.
+     */
+    public StatementCache(SQLiteDatabase db) {
+        mDatabase = db;
+    }
+
+    /**
+     * Returns the compiled statement for the SQL, compiling it on the first use.
+     *
+     * @param sql The fixed SQL of the statement.
+     * @return the compiled statement.
+     */
+    public synchronized SQLiteStatement acquire(String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement != null) {
+            mHitCount.incrementAndGet();
+            return statement;
+        }
+
+        mMissCount.incrementAndGet();
+        statement = mDatabase.compileStatement(sql);
+        mStatements.put(sql, statement);
+        return statement;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public synchronized int size() {
+        return mStatements.size();
+    }
+
+    /**
+     * Closes all compiled statements.
+     */
+    public synchronized void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+}
@@ -16,7 +16,7 @@
 
 package com.journeyOS.liteprovider.globals;
 
-import android.database.sqlite.SQLiteDatabase;
+import android.content.ContentValues;
 import android.database.sqlite.SQLiteTransactionListener;
 import android.net.Uri;
 
@@ -28,7 +28,7 @@ import java.util.Map;
 import java.util.Set;
 
 /**
- * A transaction for a database.
+ * A transaction for a {@link GlobalsStorage}.
  */
 /* package */ class Transaction {
 
@@ -36,11 +36,11 @@ import java.util.Set;
      * Indicates whether this transaction is a batch operation.
      */
     private final boolean mBatch;
-    private List<SQLiteDatabase> mDatabasesForTransaction;
-    private Map<String, SQLiteDatabase> mDatabaseMap;
+    private List<GlobalsStorage> mStoragesForTransaction;
+    private Map<String, GlobalsStorage> mStorageMap;
 
     /**
-     * Indicates whether this transaction has changed the databases.
+     * Indicates whether this transaction has changed the storages.
      */
     private boolean mDirty;
 
@@ -57,6 +57,26 @@ import java.util.Set;
      */
     private Set<Uri> mDirtyUris = new HashSet<Uri>();
 
+    /**
+     * The earliest expiry written by this transaction, or 0 if none has been written.
+     */
+    private long mEarliestExpiry;
+
+    /**
+     * The latest sequence number of the change log when this transaction started.
+     */
+    private long mStartSequence;
+
+    /**
+     * The latest sequence number written by this transaction, to be committed next.
+     */
+    private long mPendingSequence;
+
+    /**
+     * The latest sequence number committed by this transaction, including the commits of yields.
+     */
+    private long mCommittedSequence;
+
     /**
      * Create a transaction.
      *
@@ -64,8 +84,8 @@ import java.util.Set;
      */
     public Transaction(boolean batch) {
         mBatch = batch;
-        mDatabasesForTransaction = new ArrayList<SQLiteDatabase>();
-        mDatabaseMap = new HashMap<String, SQLiteDatabase>();
+        mStoragesForTransaction = new ArrayList<GlobalsStorage>();
+        mStorageMap = new HashMap<String, GlobalsStorage>();
         mDirty = false;
     }
 
@@ -94,57 +114,127 @@ import java.util.Set;
         return mDirtyUris;
     }
 
+    /**
+     * Records the expiry in the written values, so that the sweep can be scheduled
+     * without querying the storage after the commit.
+     *
+     * @param values The written values.
+     */
+    public void noteExpiry(ContentValues values) {
+        Long expiresAt = values != null ? values.getAsLong(GlobalsContract.EXPIRES_AT) : null;
+        if (expiresAt != null && expiresAt > 0
+                && (mEarliestExpiry == 0 || expiresAt < mEarliestExpiry)) {
+            mEarliestExpiry = expiresAt;
+        }
+    }
+
+    /**
+     * Returns the earliest expiry written by this transaction, or 0 if none has been written.
+     */
+    public long getEarliestExpiry() {
+        return mEarliestExpiry;
+    }
+
+    public long getStartSequence() {
+        return mStartSequence;
+    }
+
+    public void setStartSequence(long sequence) {
+        mStartSequence = sequence;
+        mPendingSequence = sequence;
+        mCommittedSequence = sequence;
+    }
+
+    public void setPendingSequence(long sequence) {
+        mPendingSequence = sequence;
+    }
+
+    public long getCommittedSequence() {
+        return mCommittedSequence;
+    }
+
+    /**
+     * Called by the {@link SQLiteTransactionListener} when the storages are about to commit.
+     * The pending sequence number becomes committed.
+     */
+    public void onCommit() {
+        mCommittedSequence = mPendingSequence;
+    }
+
+    /**
+     * Called by the {@link SQLiteTransactionListener} when the storages roll back.
+     * The changes since the last commit are dropped.
+     */
+    public void onRollback() {
+        mPendingSequence = mCommittedSequence;
+    }
+
     public void markYieldFailed() {
         mYieldFailed = true;
     }
 
-    public void startTransactionForDb(SQLiteDatabase db, String tag, SQLiteTransactionListener l) {
-        if (!hasDbInTransaction(tag)) {
-            mDatabasesForTransaction.add(db);
-            mDatabaseMap.put(tag, db);
-            if (l != null) {
-                db.beginTransactionWithListener(l);
-            } else {
-                db.beginTransaction();
-            }
+    public void startTransactionForStorage(GlobalsStorage storage, String tag,
+                                           SQLiteTransactionListener l) {
+        if (!hasStorageInTransaction(tag)) {
+            mStoragesForTransaction.add(storage);
+            mStorageMap.put(tag, storage);
+            storage.beginTransaction(l);
         }
 
     }
 
-    public boolean hasDbInTransaction(String tag) {
-        return mDatabaseMap.containsKey(tag);
+    public boolean hasStorageInTransaction(String tag) {
+        return mStorageMap.containsKey(tag);
     }
 
-    public SQLiteDatabase getDbForTag(String tag) {
-        return mDatabaseMap.get(tag);
+    public GlobalsStorage getStorageForTag(String tag) {
+        return mStorageMap.get(tag);
     }
 
-    public SQLiteDatabase removeDbForTag(String tag) {
-        SQLiteDatabase db = mDatabaseMap.get(tag);
-        mDatabaseMap.remove(tag);
-        mDatabasesForTransaction.remove(db);
-        return db;
+    public GlobalsStorage removeStorageForTag(String tag) {
+        GlobalsStorage storage = mStorageMap.get(tag);
+        mStorageMap.remove(tag);
+        mStoragesForTransaction.remove(storage);
+        return storage;
+    }
+
+    /**
+     * Rolls back the writes of the storages since their last commit and begins their
+     * transactions again. The writes committed by yields stay.
+     *
+     * @param l         The listener to be notified of the new transactions.
+     * @param dirtyUris The {@link Uri}s which had changed when the storages last committed.
+     */
+    public void rollback(SQLiteTransactionListener l, Set<Uri> dirtyUris) {
+        for (GlobalsStorage storage : mStoragesForTransaction) {
+            storage.endTransaction();
+            storage.beginTransaction(l);
+        }
+        mDirtyUris.clear();
+        mDirtyUris.addAll(dirtyUris);
+        mDirty = !mDirtyUris.isEmpty();
     }
 
     public void markSuccessful(boolean callerIsBatch) {
         if (!mBatch || callerIsBatch) {
-            for (SQLiteDatabase db : mDatabasesForTransaction) {
-                db.setTransactionSuccessful();
+            for (GlobalsStorage storage : mStoragesForTransaction) {
+                storage.setTransactionSuccessful();
             }
         }
     }
 
     public void finish(boolean callerIsBatch) {
         if (!mBatch || callerIsBatch) {
-            for (SQLiteDatabase db : mDatabasesForTransaction) {
-                if (mYieldFailed && !db.isDbLockedByCurrentThread()) {
+            for (GlobalsStorage storage : mStoragesForTransaction) {
+                if (mYieldFailed && !storage.isLockedByCurrentThread()) {
                     continue;
                 }
-                db.endTransaction();
+                storage.endTransaction();
             }
-            mDatabasesForTransaction.clear();
-            mDatabaseMap.clear();
+            mStoragesForTransaction.clear();
+            mStorageMap.clear();
             mDirty = false;
+            mEarliestExpiry = 0;
             if (mDirtyUris != null) {
                 mDirtyUris.clear();
             }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals;
+
+/**
+ * Sizes the chunks of a bulk operation between yield points from the observed statement
+ * latency and lock contention.
+ * <p>
+ * A chunk grows additively while nobody waits for the lock, bounded by the number of
+ * operations which fit in {@link #TARGET_HOLD_NANOS}. It is halved whenever the lock was
+ * actually yielded. After a yield the writer sleeps as long as it held the lock, so that
+ * waiting threads get a fair share without the fixed delay of several seconds.
+ */
+/* package */ class YieldScheduler {
+
+    /**
+     * The time to hold the lock between yield points.
+     */
+    private static final long TARGET_HOLD_NANOS = 20 * 1000 * 1000L;
+
+    private static final int MIN_BATCH_SIZE = 8;
+    private static final int INITIAL_BATCH_SIZE = 50;
+    private static final int BATCH_SIZE_STEP = 16;
+
+    private final int mMaxBatchSize;
+    private final long mMaxSleepMillis;
+
+    private int mBatchSize = INITIAL_BATCH_SIZE;
+
+    /**
+     * The smoothed latency of an operation.
+     */
+    private long mOperationNanos;
+
+    private long mYieldPoints;
+    private long mYields;
+    private long mLastSleepMillis;
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param maxBatchSize   The maximum number of operations between yield points.
+     * @param maxSleepMillis The maximum time to sleep after the lock was yielded.
+     */
+    public YieldScheduler(int maxBatchSize, long maxSleepMillis) {
+        mMaxBatchSize = maxBatchSize;
+        mMaxSleepMillis = maxSleepMillis;
+    }
+
+    /**
+     * Returns the number of operations to run before the next yield point.
+     */
+    public synchronized int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * Returns the time to sleep if the lock is yielded.
+     *
+     * @param heldNanos The time the lock has been held since the last yield point.
+     * @return the time to sleep in milliseconds.
+     */
+    public synchronized long getSleepAfterYieldMillis(long heldNanos) {
+        return Math.min(mMaxSleepMillis, heldNanos / (1000 * 1000));
+    }
+
+    /**
+     * Records a yield point and resizes the next chunk.
+     *
+     * @param operations  The number of operations since the last yield point.
+     * @param heldNanos   The time the lock was held for the operations.
+     * @param sleptMillis The time slept after yielding, if yielded.
+     * @param yielded     true if another thread was waiting and the lock was yielded.
+     */
+    public synchronized void onYieldPoint(int operations, long heldNanos, long sleptMillis,
+                                          boolean yielded) {
+        mYieldPoints++;
+        if (operations > 0) {
+            long nanos = heldNanos / operations;
+            mOperationNanos = mOperationNanos == 0 ? nanos : (mOperationNanos * 7 + nanos) / 8;
+        }
+
+        if (yielded) {
+            mYields++;
+            mLastSleepMillis = sleptMillis;
+            mBatchSize = Math.max(MIN_BATCH_SIZE, mBatchSize / 2);
+            return;
+        }
+
+        long fitting = mOperationNanos > 0 ? TARGET_HOLD_NANOS / mOperationNanos : mMaxBatchSize;
+        int limit = (int) Math.max(MIN_BATCH_SIZE, Math.min(mMaxBatchSize, fitting));
+        mBatchSize = Math.min(limit, mBatchSize + BATCH_SIZE_STEP);
+    }
+
+    /**
+     * Returns the number of yield points recorded.
+     */
+    /* package */ synchronized long getYieldPoints() {
+        return mYieldPoints;
+    }
+
+    /**
+     * Returns the number of yield points at which the lock was yielded.
+     */
+    /* package */ synchronized long getYields() {
+        return mYields;
+    }
+
+    /**
+     * Returns the smoothed latency of an operation in nanoseconds.
+     */
+    /* package */ synchronized long getOperationNanos() {
+        return mOperationNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "batchSize=" + mBatchSize
+                + " operation=" + (mOperationNanos / 1000) + "us"
+                + " yieldPoints=" + mYieldPoints
+                + " yields=" + mYields
+                + " lastSleep=" + mLastSleepMillis + "ms";
+    }
+}
@@ -16,18 +16,35 @@
 
 package com.journeyOS.liteprovider.globals.task;
 
+import com.journeyOS.liteprovider.globals.task.SerialExecutor.Priority;
+
+import java.util.Collection;
+
 /**
  * An abstract class to implement a task executed on
  * {@link com.journeyOS.liteprovider.globals.task.SerialExecutor}.
+ * <p>
+ * A task is its own handle: it can be cancelled, and it can be executed again once it has
+ * completed or been cancelled, so that callers can pool task objects.
  */
 public abstract class AbstractTask implements Runnable {
 
+    /**
+     * Indicates that no task is given an ID.
+     */
+    public static final long NO_ID = 0;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PENDING = 1;
+    private static final int STATE_RUNNING = 2;
+    private static final int STATE_CANCELLED = 3;
+
     /**
      * A unique ID for this task.
      *
-     * @see #setId(String)
+     * @see #setId(long)
      */
-    protected String mTaskId;
+    protected long mTaskId = NO_ID;
 
     /**
      * The listener to observe the status of this task.
@@ -36,16 +53,44 @@ public abstract class AbstractTask implements Runnable {
      */
     protected TaskListener mListener;
 
+    /**
+     * The state of this task. Guarded by this task.
+     */
+    private int mState = STATE_IDLE;
+
+    /**
+     * The thread running this task, to be interrupted on cancellation. Guarded by this task.
+     */
+    private Thread mRunner;
+
+    /**
+     * The exception which failed the last run of this task, or null. Guarded by this task.
+     */
+    private RuntimeException mFailure;
+
+    private Priority mPriority = Priority.NORMAL;
+
+    /**
+     * The keys ordering this task against the other tasks, or null to order it after all
+     * tasks executed before it.
+     */
+    private Collection<String> mOrderingKeys;
+
+    /**
+     * The {@link System#nanoTime()} when this task entered its lane.
+     */
+    private long mQueuedAt;
+
     public AbstractTask() {
     }
 
     public abstract void execute() throws InterruptedException;
 
-    /* package */ void setId(String id) {
+    /* package */ void setId(long id) {
         mTaskId = id;
     }
 
-    /* package */ String getId() {
+    /* package */ long getId() {
         return mTaskId;
     }
 
@@ -53,31 +98,154 @@ public abstract class AbstractTask implements Runnable {
         mListener = l;
     }
 
+    /* package */ Priority getPriority() {
+        return mPriority;
+    }
+
+    /* package */ void setPriority(Priority priority) {
+        mPriority = priority;
+    }
+
+    /* package */ Collection<String> getOrderingKeys() {
+        return mOrderingKeys;
+    }
+
+    /* package */ void setOrderingKeys(Collection<String> keys) {
+        mOrderingKeys = keys;
+    }
+
+    /* package */ long getQueuedAt() {
+        return mQueuedAt;
+    }
+
+    /* package */ void setQueuedAt(long queuedAt) {
+        mQueuedAt = queuedAt;
+    }
+
+    /**
+     * Marks this task as queued.
+     *
+     * @throws IllegalStateException if this task is already queued or running.
+     */
+    /* package */ synchronized void markPending() {
+        if (mState == STATE_PENDING || mState == STATE_RUNNING) {
+            throw new IllegalStateException("task " + mTaskId + " is already executed");
+        }
+        mState = STATE_PENDING;
+        mFailure = null;
+    }
+
+    /**
+     * Returns whether this task is queued or running.
+     */
+    public synchronized boolean isActive() {
+        return mState == STATE_PENDING || mState == STATE_RUNNING;
+    }
+
+    /**
+     * Returns whether this task was cancelled before it ran.
+     */
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    /**
+     * Returns the exception which failed the last run of this task.
+     *
+     * @return the exception, or null if the last run completed or this task has not run.
+     */
+    public synchronized RuntimeException getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * Waits until this task has completed or been cancelled. A queued task runs only after
+     * the running task of the executor, whatever its lane, so the wait includes the rest of
+     * that task.
+     *
+     * @throws InterruptedException if the caller thread was interrupted while waiting.
+     * @see #getFailure()
+     */
+    public synchronized void awaitCompletion() throws InterruptedException {
+        while (mState == STATE_PENDING || mState == STATE_RUNNING) {
+            wait();
+        }
+    }
+
+    /**
+     * Cancels this task. A queued task is not run. A running task is interrupted if allowed,
+     * and stops at its next interruption point.
+     *
+     * @param mayInterruptIfRunning true to interrupt this task if it is running.
+     * @return true if this task was cancelled or interrupted.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mState == STATE_RUNNING) {
+                if (!mayInterruptIfRunning) {
+                    return false;
+                }
+                mRunner.interrupt();
+                return true;
+            }
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mState = STATE_CANCELLED;
+            notifyAll();
+        }
+
+        onCancel(mTaskId);
+        return true;
+    }
+
     @Override
     public void run() {
+        synchronized (this) {
+            if (mState != STATE_PENDING) {
+                // Cancelled while queued.
+                return;
+            }
+            mState = STATE_RUNNING;
+            mRunner = Thread.currentThread();
+        }
+
         onStart(mTaskId);
         try {
             execute();
         } catch (InterruptedException e) {
             onCancel(mTaskId);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                mFailure = e;
+            }
+            throw e;
         } finally {
+            synchronized (this) {
+                mState = STATE_IDLE;
+                mRunner = null;
+                notifyAll();
+            }
+            // Clear an interrupt by a cancellation racing with the completion, so that it does
+            // not hit the next task on the thread.
+            Thread.interrupted();
             onComplete(mTaskId);
         }
     }
 
-    protected void onStart(String taskId) {
+    protected void onStart(long taskId) {
         if (mListener != null) {
             mListener.onStart(mTaskId);
         }
     }
 
-    protected void onCancel(String taskId) {
+    protected void onCancel(long taskId) {
         if (mListener != null) {
             mListener.onCancel(mTaskId);
         }
     }
 
-    protected void onComplete(String taskId) {
+    protected void onComplete(long taskId) {
         if (mListener != null) {
             mListener.onComplete(mTaskId);
         }
@@ -92,11 +260,11 @@ public abstract class AbstractTask implements Runnable {
     }
 
     /* package */ interface TaskListener {
-        public void onStart(String taskId);
+        public void onStart(long taskId);
 
-        public void onCancel(String taskId);
+        public void onCancel(long taskId);
 
-        public void onComplete(String taskId);
+        public void onComplete(long taskId);
 
     }
 }
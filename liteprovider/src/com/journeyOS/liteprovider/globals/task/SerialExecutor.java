@@ -17,32 +17,146 @@
 package com.journeyOS.liteprovider.globals.task;
 
 import com.journeyOS.liteprovider.globals.task.AbstractTask.TaskListener;
+import com.journeyOS.liteprovider.utils.LogUtils;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The serial task executor.
+ * <p>
+ * The queued tasks are kept by the executor, so that they can be cancelled and inspected
+ * without a {@link java.util.concurrent.Future} per task. Each task is given an ID from
+ * a sequence.
+ * <p>
+ * Tasks are queued in lanes of {@link Priority}, and the head of the highest non-empty lane
+ * runs next. Tasks sharing an ordering key run in the order they were executed: a task
+ * queued in a higher lane takes the earlier tasks it is ordered after along into its lane.
+ * The head of a lower lane which has waited longer than the limit of the lane moves to
+ * the tail of the next higher lane, so that lower lanes are not starved.
  */
 public class SerialExecutor {
 
+    /**
+     * The lanes of tasks, from the highest priority.
+     */
+    public enum Priority {
+        /**
+         * Work a caller is waiting for.
+         */
+        URGENT(0),
+
+        /**
+         * Ordinary background work.
+         */
+        NORMAL(500),
+
+        /**
+         * Large background work such as imports and maintenance.
+         */
+        BULK(2000);
+
+        /**
+         * The time the head of this lane may wait before moving to the next higher lane.
+         */
+        private final long mMaxWaitMillis;
+
+        Priority(long maxWaitMillis) {
+            mMaxWaitMillis = maxWaitMillis;
+        }
+    }
+
+    private static final String TAG = SerialExecutor.class.getSimpleName();
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
     private static final String DEFAULT_TASK_NAME = "Executor";
 
     private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
 
     private ExecutorService mExecutor;
-    private TaskPool mPool;
 
     private String mTaskName;
 
+    private final AtomicLong mLastTaskId = new AtomicLong(AbstractTask.NO_ID);
+
+    /**
+     * The queued tasks in the lanes indexed by {@link Priority#ordinal()}. Guarded by itself.
+     */
+    private final List<ArrayDeque<AbstractTask>> mPendingTasks =
+            new ArrayList<ArrayDeque<AbstractTask>>(PRIORITIES.length);
+
+    /**
+     * The running task, or null. Guarded by {@link #mPendingTasks}.
+     */
+    private AbstractTask mActiveTask;
+
+    /**
+     * The thread running the tasks, or null if no task has run.
+     */
+    private volatile Thread mWorker;
+
+    private final AtomicLong mCompletedCount = new AtomicLong();
+
+    private final TaskListener mTaskListener = new TaskListener() {
+        @Override
+        public void onStart(long taskId) {
+        }
+
+        @Override
+        public void onCancel(long taskId) {
+            synchronized (mPendingTasks) {
+                removePendingTask(taskId);
+            }
+        }
+
+        @Override
+        public void onComplete(long taskId) {
+            mCompletedCount.incrementAndGet();
+        }
+    };
+
+    /**
+     * Runs the next queued task. It is submitted once per task, so that the queue of
+     * the underlying executor holds no task objects. A task failing with a runtime exception
+     * is logged, so that it does not kill the worker thread and the process with it.
+     */
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            mWorker = Thread.currentThread();
+            AbstractTask task;
+            synchronized (mPendingTasks) {
+                task = pollNextTask();
+                mActiveTask = task;
+            }
+            if (task == null) {
+                // The task has been cancelled.
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LogUtils.w(TAG, "task " + task.getId() + " failed: " + e);
+            } finally {
+                synchronized (mPendingTasks) {
+                    mActiveTask = null;
+                }
+            }
+        }
+    };
+
     public SerialExecutor() {
         this(DEFAULT_TASK_NAME);
     }
@@ -57,7 +171,9 @@ public class SerialExecutor {
         }
 
         mExecutor = Executors.newSingleThreadExecutor(threadFactory);
-        mPool = new TaskPool();
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            mPendingTasks.add(new ArrayDeque<AbstractTask>());
+        }
     }
 
     @Override
@@ -72,7 +188,7 @@ public class SerialExecutor {
     public void destroy() {
         try {
             mExecutor.shutdown();
-            if (mExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (!mExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
                 mExecutor.shutdownNow();
             }
         } catch (InterruptedException e) {
@@ -84,60 +200,241 @@ public class SerialExecutor {
         return mTaskName;
     }
 
-    public String execute(AbstractTask task) {
-        UUID uuid = UUID.randomUUID();
-        String taskId = uuid.toString();
+    /**
+     * Queues a task in the {@link Priority#NORMAL} lane after all tasks executed before it.
+     *
+     * @param task The task to execute.
+     * @return the ID of the task.
+     * @throws IllegalStateException if the task is already queued or running.
+     */
+    public long execute(AbstractTask task) {
+        return execute(task, Priority.NORMAL, null);
+    }
+
+    /**
+     * Queues a task. A task which has completed or been cancelled can be executed again.
+     *
+     * @param task     The task to execute.
+     * @param priority The lane of the task.
+     * @param keys     The keys to order the task after the tasks executed before it with
+     *                 a common key, an empty collection not to order it, or null to order it
+     *                 after all tasks executed before it.
+     * @return the ID of the task.
+     * @throws IllegalStateException if the task is already queued or running.
+     */
+    public long execute(AbstractTask task, Priority priority, Collection<String> keys) {
+        long taskId = mLastTaskId.incrementAndGet();
+        task.markPending();
         task.setId(taskId);
-        task.setListener(mPool);
-        mPool.addTask(taskId, mExecutor.submit(task));
+        task.setListener(mTaskListener);
+        task.setPriority(priority);
+        task.setOrderingKeys(keys);
+        synchronized (mPendingTasks) {
+            promoteOrderedTasks(task);
+            enqueue(task, priority);
+        }
+        mExecutor.execute(mRunNext);
         return taskId;
     }
 
     /**
-     * The task pool to manage the current tasks.
+     * Returns whether the caller thread runs the tasks of this executor. A task waiting there
+     * for another task of this executor would never be woken up.
      */
-    private static class TaskPool implements TaskListener {
+    public boolean isExecutorThread() {
+        return mWorker == Thread.currentThread();
+    }
 
-        /**
-         * The map of {@link Future}s.
-         */
-        private Map<String, Future<?>> mTaskMap = new ConcurrentHashMap<String, Future<?>>();
+    private void enqueue(AbstractTask task, Priority priority) {
+        task.setPriority(priority);
+        task.setQueuedAt(System.nanoTime());
+        mPendingTasks.get(priority.ordinal()).add(task);
+    }
 
-        public TaskPool() {
+    /**
+     * Moves the tasks in the lanes lower than the task which it is ordered after, directly
+     * or through other tasks, to the tail of its lane in the order they were executed.
+     */
+    private void promoteOrderedTasks(AbstractTask task) {
+        int lane = task.getPriority().ordinal();
+        List<AbstractTask> lower = new ArrayList<AbstractTask>();
+        for (int i = lane + 1; i < PRIORITIES.length; i++) {
+            lower.addAll(mPendingTasks.get(i));
+        }
+        if (lower.isEmpty()) {
+            return;
         }
 
-        public void addTask(String taskId, Future<?> futureTask) {
-            mTaskMap.put(taskId, futureTask);
+        // Walk back from the latest task, so that each task is checked against the later
+        // tasks already known to be ordered after it.
+        Collections.sort(lower, TASK_ID_COMPARATOR);
+        List<AbstractTask> ordered = new ArrayList<AbstractTask>();
+        ordered.add(task);
+        List<AbstractTask> promoted = new ArrayList<AbstractTask>();
+        for (int i = lower.size() - 1; i >= 0; i--) {
+            AbstractTask candidate = lower.get(i);
+            for (AbstractTask later : ordered) {
+                if (isOrdered(candidate, later)) {
+                    ordered.add(candidate);
+                    promoted.add(candidate);
+                    break;
+                }
+            }
         }
 
-        public boolean removeTask(String taskId) {
-            return (mTaskMap.remove(taskId) != null);
+        Priority priority = task.getPriority();
+        for (int i = promoted.size() - 1; i >= 0; i--) {
+            AbstractTask candidate = promoted.get(i);
+            mPendingTasks.get(candidate.getPriority().ordinal()).remove(candidate);
+            enqueue(candidate, priority);
         }
+    }
 
-        public Set<String> getTaskIdSet() {
-            return mTaskMap.keySet();
+    /**
+     * Returns the head of the highest non-empty lane after moving the heads which have waited
+     * too long to the next higher lanes.
+     */
+    private AbstractTask pollNextTask() {
+        long now = System.nanoTime();
+        for (int i = 1; i < PRIORITIES.length; i++) {
+            AbstractTask head = mPendingTasks.get(i).peek();
+            if (head != null && TimeUnit.NANOSECONDS.toMillis(now - head.getQueuedAt())
+                    > PRIORITIES[i].mMaxWaitMillis) {
+                // A task earlier than the head and ordered before it is in a higher lane,
+                // so the head does not overtake it.
+                mPendingTasks.get(i).poll();
+                enqueue(head, PRIORITIES[i - 1]);
+            }
         }
 
-        public Collection<Future<?>> getTasks() {
-            return mTaskMap.values();
+        for (ArrayDeque<AbstractTask> tasks : mPendingTasks) {
+            AbstractTask task = tasks.poll();
+            if (task != null) {
+                return task;
+            }
         }
+        return null;
+    }
 
-        public Future<?> getTask(String taskId) {
-            return mTaskMap.get(taskId);
+    private static boolean isOrdered(AbstractTask earlier, AbstractTask later) {
+        Collection<String> earlierKeys = earlier.getOrderingKeys();
+        Collection<String> laterKeys = later.getOrderingKeys();
+        if (earlierKeys == null || laterKeys == null) {
+            return true;
+        }
+        for (String key : laterKeys) {
+            if (earlierKeys.contains(key)) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        @Override
-        public void onStart(String taskId) {
+    private static final Comparator<AbstractTask> TASK_ID_COMPARATOR =
+            new Comparator<AbstractTask>() {
+                @Override
+                public int compare(AbstractTask a, AbstractTask b) {
+                    long x = a.getId();
+                    long y = b.getId();
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            };
+
+    /**
+     * Cancels a queued or running task.
+     *
+     * @param taskId                The ID of the task.
+     * @param mayInterruptIfRunning true to interrupt the task if it is running.
+     * @return true if the task was cancelled or interrupted.
+     * @see AbstractTask#cancel(boolean)
+     */
+    public boolean cancel(long taskId, boolean mayInterruptIfRunning) {
+        AbstractTask task = null;
+        synchronized (mPendingTasks) {
+            if (mActiveTask != null && mActiveTask.getId() == taskId) {
+                task = mActiveTask;
+            } else {
+                task = findPendingTask(taskId);
+            }
         }
+        return task != null && task.cancel(mayInterruptIfRunning);
+    }
 
-        @Override
-        public void onCancel(String taskId) {
-            removeTask(taskId);
+    /**
+     * Returns the number of queued tasks, not counting the running one.
+     */
+    public int getPendingCount() {
+        synchronized (mPendingTasks) {
+            int count = 0;
+            for (ArrayDeque<AbstractTask> tasks : mPendingTasks) {
+                count += tasks.size();
+            }
+            return count;
         }
+    }
 
-        @Override
-        public void onComplete(String taskId) {
-            removeTask(taskId);
+    /**
+     * Returns the number of queued tasks in a lane.
+     */
+    public int getPendingCount(Priority priority) {
+        synchronized (mPendingTasks) {
+            return mPendingTasks.get(priority.ordinal()).size();
+        }
+    }
+
+    /**
+     * Returns the IDs of the queued tasks from the highest lane. Lower lanes may move up
+     * before they run.
+     */
+    public long[] getPendingTaskIds() {
+        synchronized (mPendingTasks) {
+            long[] ids = new long[getPendingCount()];
+            int i = 0;
+            for (ArrayDeque<AbstractTask> tasks : mPendingTasks) {
+                for (AbstractTask task : tasks) {
+                    ids[i++] = task.getId();
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Returns the ID of the running task, or {@link AbstractTask#NO_ID} if no task is running.
+     */
+    public long getActiveTaskId() {
+        synchronized (mPendingTasks) {
+            return mActiveTask != null ? mActiveTask.getId() : AbstractTask.NO_ID;
+        }
+    }
+
+    /**
+     * Returns the number of tasks which have run, including the interrupted ones.
+     */
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    private AbstractTask findPendingTask(long taskId) {
+        for (ArrayDeque<AbstractTask> tasks : mPendingTasks) {
+            for (AbstractTask task : tasks) {
+                if (task.getId() == taskId) {
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void removePendingTask(long taskId) {
+        for (ArrayDeque<AbstractTask> tasks : mPendingTasks) {
+            Iterator<AbstractTask> iterator = tasks.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getId() == taskId) {
+                    iterator.remove();
+                    return;
+                }
+            }
         }
     }
 
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals.task;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of task objects for {@link SerialExecutor}.
+ * <p>
+ * A task is released when it has completed or been cancelled, typically from
+ * {@link AbstractTask#onComplete(long)} or by the thread which awaited it. As a safeguard,
+ * a task is handed out only if it is not queued or running, so a task is never queued twice.
+ * Only the oldest released task is checked.
+ *
+ * @param <T> The type of the tasks.
+ */
+public class TaskPool<T extends AbstractTask> {
+
+    private final int mMaxSize;
+
+    /**
+     * The released tasks from the oldest. Guarded by this pool.
+     */
+    private final ArrayDeque<T> mTasks;
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxSize The maximum number of tasks kept by the pool.
+     */
+    public TaskPool(int maxSize) {
+        mMaxSize = maxSize;
+        mTasks = new ArrayDeque<T>(maxSize);
+    }
+
+    /**
+     * Returns a task which is no longer queued or running.
+     *
+     * @return the task, or null if no released task has completed yet.
+     */
+    public synchronized T acquire() {
+        T task = mTasks.peek();
+        if (task == null || task.isActive()) {
+            return null;
+        }
+        return mTasks.poll();
+    }
+
+    /**
+     * Returns a task to the pool. The task is dropped if the pool is full.
+     *
+     * @param task The task to release.
+     */
+    public synchronized void release(T task) {
+        if (mTasks.size() < mMaxSize) {
+            mTasks.add(task);
+        }
+    }
+}
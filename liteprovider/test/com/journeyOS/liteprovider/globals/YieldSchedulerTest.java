@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.journeyOS.liteprovider.globals;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link YieldScheduler} sizes the chunks and counts the yield points.
+ */
+public class YieldSchedulerTest {
+
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final long MAX_SLEEP_MILLIS = 100;
+
+    @Test
+    public void growsChunkWhileUncontended() {
+        YieldScheduler scheduler = new YieldScheduler(MAX_BATCH_SIZE, MAX_SLEEP_MILLIS);
+        int batchSize = scheduler.getBatchSize();
+
+        // 10us per operation leaves room for far more operations than one step adds.
+        scheduler.onYieldPoint(batchSize, batchSize * 10 * 1000L, 0, false);
+
+        assertTrue(scheduler.getBatchSize() > batchSize);
+        assertEquals(1, scheduler.getYieldPoints());
+        assertEquals(0, scheduler.getYields());
+        assertEquals(10 * 1000L, scheduler.getOperationNanos());
+    }
+
+    @Test
+    public void boundsChunkByHoldTime() {
+        YieldScheduler scheduler = new YieldScheduler(MAX_BATCH_SIZE, MAX_SLEEP_MILLIS);
+
+        // 1ms per operation fits 20 operations in the target hold time.
+        for (int i = 0; i < 10; i++) {
+            int batchSize = scheduler.getBatchSize();
+            scheduler.onYieldPoint(batchSize, batchSize * 1000 * 1000L, 0, false);
+        }
+
+        assertEquals(20, scheduler.getBatchSize());
+        assertEquals(10, scheduler.getYieldPoints());
+    }
+
+    @Test
+    public void halvesChunkWhenYielded() {
+        YieldScheduler scheduler = new YieldScheduler(MAX_BATCH_SIZE, MAX_SLEEP_MILLIS);
+        int batchSize = scheduler.getBatchSize();
+
+        scheduler.onYieldPoint(batchSize, batchSize * 10 * 1000L, 5, true);
+
+        assertEquals(batchSize / 2, scheduler.getBatchSize());
+        assertEquals(1, scheduler.getYieldPoints());
+        assertEquals(1, scheduler.getYields());
+    }
+
+    @Test
+    public void neverShrinksBelowMinimum() {
+        YieldScheduler scheduler = new YieldScheduler(MAX_BATCH_SIZE, MAX_SLEEP_MILLIS);
+
+        for (int i = 0; i < 20; i++) {
+            scheduler.onYieldPoint(8, 8 * 1000L, 0, true);
+        }
+
+        assertEquals(8, scheduler.getBatchSize());
+        assertEquals(20, scheduler.getYields());
+    }
+
+    @Test
+    public void ignoresEmptyChunkInLatency() {
+        YieldScheduler scheduler = new YieldScheduler(MAX_BATCH_SIZE, MAX_SLEEP_MILLIS);
+
+        scheduler.onYieldPoint(0, 1000 * 1000L, 0, false);
+
+        assertEquals(0, scheduler.getOperationNanos());
+        assertEquals(1, scheduler.getYieldPoints());
+    }
+
+    @Test
+    public void capsSleepAfterYield() {
+        YieldScheduler scheduler = new YieldScheduler(MAX_BATCH_SIZE, MAX_SLEEP_MILLIS);
+
+        assertEquals(5, scheduler.getSleepAfterYieldMillis(5 * 1000 * 1000L));
+        assertEquals(MAX_SLEEP_MILLIS, scheduler.getSleepAfterYieldMillis(1000 * 1000 * 1000L));
+    }
+}
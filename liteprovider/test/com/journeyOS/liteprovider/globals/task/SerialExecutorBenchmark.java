@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2018 anqi.huang@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.journeyOS.liteprovider.globals.task;
+
+import com.journeyOS.liteprovider.globals.task.SerialExecutor.Priority;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link SerialExecutor} for tasks which do no work, so that
+ * the cost of queueing, ordering and handing over a task is what is measured.
+ * <p>
+ * Run with {@code ./gradlew :liteprovider:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SerialExecutorBenchmark {
+
+    private static final int TASKS = 1000;
+    private static final int KEYS = 16;
+
+    private SerialExecutor mExecutor;
+    private TaskPool<NoOpTask> mPool;
+    private Collection<String>[] mKeys;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        mExecutor = new SerialExecutor("Benchmark");
+        mPool = new TaskPool<NoOpTask>(TASKS);
+        mKeys = new Collection[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            mKeys[i] = Collections.singleton("key" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.destroy();
+    }
+
+    /**
+     * Executes new tasks, each ordered after all tasks before it.
+     */
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void executeNewTasks() throws InterruptedException {
+        AbstractTask last = null;
+        for (int i = 0; i < TASKS; i++) {
+            last = new NoOpTask();
+            mExecutor.execute(last);
+        }
+        last.awaitCompletion();
+    }
+
+    /**
+     * Executes tasks taken from a pool, each released when it completes.
+     */
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void executePooledTasks() throws InterruptedException {
+        AbstractTask last = null;
+        for (int i = 0; i < TASKS; i++) {
+            NoOpTask task = mPool.acquire();
+            if (task == null) {
+                task = new NoOpTask(mPool);
+            }
+            mExecutor.execute(task);
+            last = task;
+        }
+        last.awaitCompletion();
+    }
+
+    /**
+     * Executes tasks ordered by key in the normal and the bulk lanes, with an urgent task
+     * every tenth, so that the urgent tasks promote the earlier tasks sharing their key.
+     */
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void executeKeyedTasks() throws InterruptedException {
+        for (int i = 0; i < TASKS; i++) {
+            Priority priority = i % 10 == 0 ? Priority.URGENT
+                    : (i % 2 == 0 ? Priority.NORMAL : Priority.BULK);
+            mExecutor.execute(new NoOpTask(), priority, mKeys[i % KEYS]);
+        }
+        // Ordered after all tasks, so it completes last.
+        AbstractTask last = new NoOpTask();
+        mExecutor.execute(last, Priority.BULK, null);
+        last.awaitCompletion();
+    }
+
+    private static final class NoOpTask extends AbstractTask {
+
+        /**
+         * The pool to release this task to when it completes, or null.
+         */
+        private final TaskPool<NoOpTask> mPool;
+
+        public NoOpTask() {
+            this(null);
+        }
+
+        public NoOpTask(TaskPool<NoOpTask> pool) {
+            mPool = pool;
+        }
+
+        @Override
+        public void execute() {
+        }
+
+        @Override
+        protected void onComplete(long taskId) {
+            super.onComplete(taskId);
+            if (mPool != null) {
+                mPool.release(this);
+            }
+        }
+    }
+}